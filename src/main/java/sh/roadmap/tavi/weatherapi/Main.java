@@ -60,15 +60,15 @@ public class Main {
 		PropertiesReader props = new PropertiesReader(inStream);
 		
 		WeatherController api = new WeatherController(props);
-		IWeatherService service = new RedisWeatherService(props);
+		RedisWeatherService redis = new RedisWeatherService(props);
+		IWeatherService service = redis;
 		
-		// If not connected to the Redis, fallback to JSON caching
-		if (service.getStatus() != DBSTATUS.CONNECTED) {
-			try {
-				service = new JsonWeatherService("data/meta.json");
-			} catch (IOException e) {
-				logger.warning("Could not create JSON service", e);
-			}
+		// JSON caching, while not connected to the Redis (or if Redis is not configured at all)
+		try {
+			IWeatherService local = new JsonWeatherService("data/meta.json");
+			service = redis.getStatus() == DBSTATUS.NOT_INITIALIZED ? local : new FailoverWeatherService(redis, local, props);
+		} catch (IOException e) {
+			logger.warning("Could not create JSON service", e);
 		}
 		
 		WeatherApplication app = new WeatherApplication(
@@ -78,8 +78,11 @@ public class Main {
 		
 		api.setLogger(logger);
 		service.setLogger(logger);
+		service.setTtlPolicy(new AdaptiveTtlPolicy(props)); // Today's forecasts expire sooner, and at the local midnight
 		
 		api.setService(service);
+		api.warmUp(); // Open the connection to the server while the window is being set up
+		api.warmUpCache(); // Load the most requested forecasts before the window is shown
 		
 		app.setApi(api);
 		app.setService(service);
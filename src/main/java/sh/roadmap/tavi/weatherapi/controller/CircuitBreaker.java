@@ -0,0 +1,115 @@
+package sh.roadmap.tavi.weatherapi.controller;
+
+
+import java.io.IOException;
+import java.time.Duration;
+
+/**
+ * Stops sending requests to a server, which keeps failing. <br>
+ * CLOSED - the requests are sent as usual; after "threshold" failures in a row the breaker opens <br>
+ * OPEN - the requests fail at once (without waiting for the timeouts) for the "open" duration <br>
+ * HALF_OPEN - a single trial request is let through; its success closes the breaker, its failure opens it again
+ */
+public class CircuitBreaker {
+	
+	private final int threshold;
+	private final long openMillis;
+	
+	private STATE state = STATE.CLOSED;
+	private int failures; // Failures in a row
+	private long openedAt;
+	private boolean trialInFlight;
+	
+	/**
+	 * Creates a closed circuit breaker
+	 * @param threshold - How many failures in a row open the breaker
+	 * @param open - How long the breaker stays open before a trial request is let through
+	 */
+	public CircuitBreaker(int threshold, Duration open) {
+		this.threshold = Math.max(1, threshold);
+		this.openMillis = open.toMillis();
+	}
+	
+	/**
+	 * Asks for the permission to send a request
+	 * @return - false if the breaker is open (or the trial request is already in flight), true otherwise
+	 */
+	public synchronized boolean allowRequest() {
+		if (state == STATE.OPEN) {
+			if (System.currentTimeMillis() - openedAt < openMillis) {
+				return false;
+			}
+			state = STATE.HALF_OPEN;
+			trialInFlight = false;
+		}
+		if (state == STATE.HALF_OPEN) {
+			if (trialInFlight) {
+				return false;
+			}
+			trialInFlight = true;
+		}
+		return true;
+	}
+	
+	/**
+	 * Reports that the server has responded (closes the breaker)
+	 */
+	public synchronized void onSuccess() {
+		state = STATE.CLOSED;
+		failures = 0;
+		trialInFlight = false;
+	}
+	
+	/**
+	 * Reports that the server has failed to respond
+	 * @return - true, if the breaker has opened because of this failure
+	 */
+	public synchronized boolean onFailure() {
+		trialInFlight = false;
+		failures++;
+		if (state == STATE.HALF_OPEN || (state == STATE.CLOSED && failures >= threshold)) {
+			state = STATE.OPEN;
+			openedAt = System.currentTimeMillis();
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Reports that the request has failed before reaching the server (says nothing about the server:
+	 * only lets another trial request through, if it was the trial one)
+	 */
+	public synchronized void onAbort() {
+		trialInFlight = false;
+	}
+	
+	/**
+	 * Get the current state of the breaker (see the return value type for info)
+	 * @return - CircuitBreaker.STATE
+	 */
+	public synchronized STATE getState() {
+		return state;
+	}
+	
+	/**
+	 * CLOSED - requests are sent <br>
+	 * OPEN - requests fail fast <br>
+	 * HALF_OPEN - a trial request is allowed
+	 */
+	public enum STATE {
+		CLOSED,
+		OPEN,
+		HALF_OPEN
+	}
+	
+	/**
+	 * The request was not sent, because the breaker is open
+	 */
+	public static class OpenException extends IOException {
+		private static final long serialVersionUID = 1L;
+		
+		public OpenException() {
+			super("The server keeps failing; the request was not sent (circuit breaker is open)");
+		}
+	}
+}
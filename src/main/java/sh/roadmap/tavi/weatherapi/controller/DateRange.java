@@ -0,0 +1,163 @@
+package sh.roadmap.tavi.weatherapi.controller;
+
+
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A range of the days (both ends inclusive), resolved from the date expression of the request. <br>
+ * The relative expressions ("today", "next7days", etc.) are resolved to the dates, so that the requests for the same days
+ * share the cached days (see {@link WeatherController#sendRequestAsync(String, String)}).
+ */
+public final class DateRange {
+	
+	/**
+	 * The longest range, which is cached by the days
+	 */
+	public static final int MAX_DAYS = 366;
+	
+	private static final Pattern NEXT_DAYS = Pattern.compile("next(\\d{1,3})days");
+	
+	private final LocalDate start;
+	private final LocalDate end;
+	
+	/**
+	 * Creates the range of the days
+	 * @param start - The first day
+	 * @param end - The last day (not before the first one)
+	 */
+	public DateRange(LocalDate start, LocalDate end) {
+		if (end.isBefore(start)) {
+			throw new IllegalArgumentException("The range ends before it starts: " + start + "/" + end);
+		}
+		this.start = start;
+		this.end = end;
+	}
+	
+	/**
+	 * Resolves the date expression of the request. Supported expressions: "today", "tomorrow", "yesterday",
+	 * "next{N}days" (today and N days after it), "yyyy-MM-dd", "yyyy-MM-dd/yyyy-MM-dd"
+	 * @param forDate - The date expression
+	 * @param today - The current date at the location
+	 * @return - Optional range (empty, if the expression is not supported, e.g. "last30days", or the range is too long)
+	 */
+	public static Optional<DateRange> resolve(String forDate, LocalDate today) {
+		if (forDate == null) {
+			return Optional.empty();
+		}
+		String expression = forDate.trim().toLowerCase(Locale.ROOT);
+		DateRange result = null;
+		try {
+			switch (expression) {
+			case "today":
+				result = new DateRange(today, today);
+				break;
+			case "tomorrow":
+				result = new DateRange(today.plusDays(1), today.plusDays(1));
+				break;
+			case "yesterday":
+				result = new DateRange(today.minusDays(1), today.minusDays(1));
+				break;
+			default:
+				Matcher next = NEXT_DAYS.matcher(expression);
+				if (next.matches()) {
+					result = new DateRange(today, today.plusDays(Integer.parseInt(next.group(1))));
+				} else {
+					result = parse(expression).orElse(null);
+				}
+			}
+		} catch (IllegalArgumentException e) {
+			return Optional.empty();
+		}
+		return Optional.ofNullable(result).filter(range -> range.length() <= MAX_DAYS);
+	}
+	
+	/**
+	 * Parses the explicit range (see {@link #toString()})
+	 * @param forDate - "yyyy-MM-dd" or "yyyy-MM-dd/yyyy-MM-dd"
+	 * @return - Optional range (empty, if it is not an explicit range)
+	 */
+	public static Optional<DateRange> parse(String forDate) {
+		if (forDate == null) {
+			return Optional.empty();
+		}
+		String[] dates = forDate.trim().split("/", -1);
+		try {
+			if (dates.length == 1) {
+				LocalDate date = LocalDate.parse(dates[0]);
+				return Optional.of(new DateRange(date, date));
+			}
+			if (dates.length == 2) {
+				return Optional.of(new DateRange(LocalDate.parse(dates[0]), LocalDate.parse(dates[1])));
+			}
+		} catch (DateTimeParseException | IllegalArgumentException e) {
+			// Not an explicit range
+		}
+		return Optional.empty();
+	}
+	
+	/**
+	 * @return - The first day
+	 */
+	public LocalDate getStart() {
+		return start;
+	}
+	
+	/**
+	 * @return - The last day
+	 */
+	public LocalDate getEnd() {
+		return end;
+	}
+	
+	/**
+	 * @return - The number of the days in the range
+	 */
+	public int length() {
+		return (int) ChronoUnit.DAYS.between(start, end) + 1;
+	}
+	
+	/**
+	 * @return - All the days of the range, in order
+	 */
+	public List<LocalDate> days() {
+		List<LocalDate> result = new ArrayList<>(length());
+		for (LocalDate day = start; !day.isAfter(end); day = day.plusDays(1)) {
+			result.add(day);
+		}
+		return result;
+	}
+	
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof DateRange)) {
+			return false;
+		}
+		DateRange other = (DateRange) obj;
+		return start.equals(other.start) && end.equals(other.end);
+	}
+	
+	@Override
+	public int hashCode() {
+		return start.hashCode() * 31 + end.hashCode();
+	}
+	
+	/**
+	 * The explicit date expression of the range, as the Visual Crossing server accepts it
+	 * @return - "yyyy-MM-dd" for a single day, "yyyy-MM-dd/yyyy-MM-dd" otherwise
+	 */
+	@Override
+	public String toString() {
+		return start.equals(end) ? start.toString() : start + "/" + end;
+	}
+}
@@ -0,0 +1,503 @@
+package sh.roadmap.tavi.weatherapi.controller;
+
+
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * An immutable, typed model of the Visual Crossing response, parsed once. <br>
+ * The days are stored by columns (one column per element): the numeric elements (temp, tempmin, tempmax, etc.)
+ * in primitive double arrays, every element - also as text (the way it was received), so the reads don't allocate or parse anything.
+ * The nested values (hours, preciptype, etc.) are kept as JSON text and parsed on demand. <br>
+ * A forecast, restored from the cache (see {@link ForecastCodec#decode(byte[])}), keeps the cached bytes
+ * and decodes the top-level values and every column only on the first access to them.
+ */
+public final class Forecast {
+	
+	/**
+	 * A forecast without any days or fields
+	 */
+	public static final Forecast EMPTY = new Forecast(new Fields(Collections.emptyMap(), Collections.emptySet()), 0, new String[0], new Column[0], new boolean[0], new boolean[0], null);
+	
+	private final int days;
+	private final String[] columns; // Names of the day elements
+	private final boolean[] numeric; // Whether the column values are numbers
+	private final boolean[] nested; // Whether the column values are JSON arrays/objects
+	
+	private final Source source; // The cached bytes to decode from (null, if parsed from JSON)
+	private volatile Fields fields; // Top-level values of the response (decoded on demand)
+	private final AtomicReferenceArray<Column> values; // Values of the columns (decoded on demand)
+	
+	Forecast(Fields fields, int days, String[] columns, Column[] values, boolean[] numeric, boolean[] nested, Source source) {
+		this.fields = fields;
+		this.days = days;
+		this.columns = columns;
+		this.values = new AtomicReferenceArray<>(values);
+		this.numeric = numeric;
+		this.nested = nested;
+		this.source = source;
+	}
+	
+	/**
+	 * Parses the response body into the columnar model
+	 * @param body - JSONObject, received from the server (or restored from the database)
+	 * @return - A new immutable Forecast
+	 */
+	public static Forecast of(JSONObject body) {
+		Map<String, Object> fields = new HashMap<>();
+		Set<String> nestedFields = new HashSet<>();
+		for (String key : body.keySet()) {
+			if (key.equals("days")) {
+				continue;
+			}
+			Object value = body.opt(key);
+			if (value instanceof JSONObject || value instanceof JSONArray) {
+				fields.put(key, value.toString());
+				nestedFields.add(key);
+			} else if (value != null && value != JSONObject.NULL) {
+				fields.put(key, value);
+			}
+		}
+		
+		JSONArray daysArray = body.optJSONArray("days");
+		int days = daysArray == null ? 0 : daysArray.length();
+		
+		// Collect the columns in the order of their appearance
+		Map<String, Integer> index = new LinkedHashMap<>();
+		for (int day = 0; day < days; day++) {
+			JSONObject dayObject = daysArray.optJSONObject(day);
+			if (dayObject != null) {
+				dayObject.keySet().forEach(key -> index.putIfAbsent(key, index.size()));
+			}
+		}
+		
+		String[] columns = index.keySet().toArray(String[]::new);
+		Column[] values = new Column[columns.length];
+		boolean[] numeric = new boolean[columns.length];
+		boolean[] nested = new boolean[columns.length];
+		for (int column = 0; column < columns.length; column++) {
+			numeric[column] = true;
+			double[] numberColumn = new double[days];
+			String[] textColumn = new String[days];
+			for (int day = 0; day < days; day++) {
+				JSONObject dayObject = daysArray.optJSONObject(day);
+				Object value = dayObject == null ? null : dayObject.opt(columns[column]);
+				if (value == null || value == JSONObject.NULL) {
+					numberColumn[day] = Double.NaN;
+					continue;
+				}
+				if (value instanceof Number) {
+					numberColumn[day] = ((Number) value).doubleValue();
+				} else {
+					numeric[column] = false;
+					nested[column] |= value instanceof JSONObject || value instanceof JSONArray;
+				}
+				textColumn[day] = String.valueOf(value);
+			}
+			values[column] = new Column(numeric[column] ? numberColumn : null, textColumn);
+		}
+		
+		return new Forecast(new Fields(Collections.unmodifiableMap(fields), Collections.unmodifiableSet(nestedFields)), days, columns, values, numeric, nested, null);
+	}
+	
+	/**
+	 * Creates a forecast of some of the days (with the same top-level values)
+	 * @param from - The first day (inclusive, starting from 0)
+	 * @param to - The last day (exclusive)
+	 * @return - A new immutable Forecast
+	 */
+	public Forecast slice(int from, int to) {
+		if (from < 0 || to > days || from > to) {
+			throw new IndexOutOfBoundsException("Days " + from + ".." + to + " of " + days);
+		}
+		Column[] sliced = new Column[columns.length];
+		for (int column = 0; column < columns.length; column++) {
+			Column columnValues = values(column);
+			sliced[column] = new Column(columnValues.numbers == null ? null : Arrays.copyOfRange(columnValues.numbers, from, to),
+					Arrays.copyOfRange(columnValues.texts, from, to));
+		}
+		return new Forecast(fields(), to - from, columns, sliced, numeric, nested, null);
+	}
+	
+	/**
+	 * Joins the days of several forecasts (the columns are merged; the absent values are left absent)
+	 * @param parts - Some forecasts, in the order of their days (at least one)
+	 * @return - A new immutable Forecast with the top-level values of the first part
+	 */
+	public static Forecast join(List<Forecast> parts) {
+		Map<String, Integer> index = new LinkedHashMap<>();
+		int days = 0;
+		for (Forecast part : parts) {
+			for (String column : part.columns) {
+				index.putIfAbsent(column, index.size());
+			}
+			days += part.days;
+		}
+		
+		String[] columns = index.keySet().toArray(String[]::new);
+		boolean[] numeric = new boolean[columns.length];
+		boolean[] nested = new boolean[columns.length];
+		double[][] numbers = new double[columns.length][days];
+		String[][] texts = new String[columns.length][days];
+		Arrays.fill(numeric, true);
+		for (double[] numberColumn : numbers) {
+			Arrays.fill(numberColumn, Double.NaN);
+		}
+		int offset = 0;
+		for (Forecast part : parts) {
+			for (int partColumn = 0; partColumn < part.columns.length; partColumn++) {
+				int column = index.get(part.columns[partColumn]);
+				Column partValues = part.values(partColumn);
+				numeric[column] &= part.numeric[partColumn];
+				nested[column] |= part.nested[partColumn];
+				System.arraycopy(partValues.texts, 0, texts[column], offset, part.days);
+				if (partValues.numbers != null) {
+					System.arraycopy(partValues.numbers, 0, numbers[column], offset, part.days);
+				}
+			}
+			offset += part.days;
+		}
+		
+		Column[] values = new Column[columns.length];
+		for (int column = 0; column < columns.length; column++) {
+			values[column] = new Column(numeric[column] ? numbers[column] : null, texts[column]);
+		}
+		return new Forecast(parts.get(0).fields(), days, columns, values, numeric, nested, null);
+	}
+	
+	/**
+	 * Creates a copy of the forecast with another top-level value
+	 * @param key - Key of the value
+	 * @param value - A String, a Number or a Boolean (null to remove the value)
+	 * @return - A new immutable Forecast
+	 */
+	public Forecast withField(String key, Object value) {
+		Map<String, Object> values = new HashMap<>(fields().values);
+		Set<String> nestedValues = new HashSet<>(fields().nested);
+		if (value == null) {
+			values.remove(key);
+		} else {
+			values.put(key, value);
+		}
+		nestedValues.remove(key);
+		Column[] loaded = new Column[columns.length];
+		for (int column = 0; column < columns.length; column++) {
+			loaded[column] = values(column);
+		}
+		return new Forecast(new Fields(Collections.unmodifiableMap(values), Collections.unmodifiableSet(nestedValues)), days, columns, loaded, numeric, nested, null);
+	}
+	
+	/**
+	 * Creates a copy of the forecast without the top-level values (only the days are left)
+	 * @return - A new immutable Forecast
+	 */
+	public Forecast withoutFields() {
+		Column[] loaded = new Column[columns.length];
+		for (int column = 0; column < columns.length; column++) {
+			loaded[column] = values(column);
+		}
+		return new Forecast(new Fields(Collections.emptyMap(), Collections.emptySet()), days, columns, loaded, numeric, nested, null);
+	}
+	
+	/**
+	 * Creates a copy of the forecast with some of the day elements
+	 * @param elements - Names of the elements to keep
+	 * @return - A new immutable Forecast (with the same top-level values)
+	 */
+	public Forecast select(Collection<String> elements) {
+		List<Integer> kept = new ArrayList<>();
+		for (int column = 0; column < columns.length; column++) {
+			if (elements.contains(columns[column])) {
+				kept.add(column);
+			}
+		}
+		String[] selected = new String[kept.size()];
+		Column[] loaded = new Column[kept.size()];
+		boolean[] selectedNumeric = new boolean[kept.size()];
+		boolean[] selectedNested = new boolean[kept.size()];
+		for (int i = 0; i < kept.size(); i++) {
+			int column = kept.get(i);
+			selected[i] = columns[column];
+			loaded[i] = values(column);
+			selectedNumeric[i] = numeric[column];
+			selectedNested[i] = nested[column];
+		}
+		return new Forecast(fields(), days, selected, loaded, selectedNumeric, selectedNested, null);
+	}
+	
+	/**
+	 * Creates a copy of the forecast with the day elements of another forecast of the same days added (or replaced)
+	 * @param other - A forecast with the same number of days
+	 * @return - A new immutable Forecast (with the top-level values of this one)
+	 */
+	public Forecast withColumns(Forecast other) {
+		if (other.days != days) {
+			throw new IllegalArgumentException("Can't merge the forecasts of " + days + " and " + other.days + " days");
+		}
+		Map<String, Integer> index = new LinkedHashMap<>();
+		for (String column : columns) {
+			index.putIfAbsent(column, index.size());
+		}
+		for (String column : other.columns) {
+			index.putIfAbsent(column, index.size());
+		}
+		String[] merged = index.keySet().toArray(String[]::new);
+		Column[] loaded = new Column[merged.length];
+		boolean[] mergedNumeric = new boolean[merged.length];
+		boolean[] mergedNested = new boolean[merged.length];
+		for (int column = 0; column < merged.length; column++) {
+			Forecast source = other.column(merged[column]) >= 0 ? other : this;
+			int sourceColumn = source.column(merged[column]);
+			loaded[column] = source.values(sourceColumn);
+			mergedNumeric[column] = source.numeric[sourceColumn];
+			mergedNested[column] = source.nested[sourceColumn];
+		}
+		return new Forecast(fields(), days, merged, loaded, mergedNumeric, mergedNested, null);
+	}
+	
+	/**
+	 * Get the number of days in the forecast
+	 * @return - The number of days (0 if there are none)
+	 */
+	public int getDays() {
+		return days;
+	}
+	
+	/**
+	 * Finds the column of the day element. Resolve the column once, then read it with
+	 * {@link #getNumber(int, int)} or {@link #getText(int, int)} as many times as needed.
+	 * @param element - Name of the element (temp, conditions, etc.)
+	 * @return - Index of the column, or -1 if there is no such element in the forecast
+	 */
+	public int column(String element) {
+		for (int column = 0; column < columns.length; column++) {
+			if (columns[column].equals(element)) {
+				return column;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Get the names of the day elements
+	 * @return - An unmodifiable list of the elements, in the order of the columns
+	 */
+	public List<String> getColumns() {
+		return Collections.unmodifiableList(Arrays.asList(columns));
+	}
+	
+	/**
+	 * Whether the column holds numbers
+	 * @param column - Index of the column
+	 * @return - true if every value of the column is a number
+	 */
+	public boolean isNumeric(int column) {
+		return column >= 0 && column < columns.length && numeric[column];
+	}
+	
+	/**
+	 * Get the numeric value of the day element
+	 * @param day - Some day (starting from 0)
+	 * @param column - Index of the column (see {@link #column(String)})
+	 * @return - The value, or NaN if the day, the column or the value is absent (or not a number)
+	 */
+	public double getNumber(int day, int column) {
+		if (day < 0 || day >= days || !isNumeric(column)) {
+			return Double.NaN;
+		}
+		return values(column).numbers[day];
+	}
+	
+	/**
+	 * Get the text value of the day element (exactly as it was received; nested values are JSON text)
+	 * @param day - Some day (starting from 0)
+	 * @param column - Index of the column (see {@link #column(String)})
+	 * @return - The value, or null if the day, the column or the value is absent
+	 */
+	public String getText(int day, int column) {
+		if (day < 0 || day >= days || column < 0 || column >= columns.length) {
+			return null;
+		}
+		return values(column).texts[day];
+	}
+	
+	/**
+	 * Creates a JSON object with all the elements of the day
+	 * @param day - Some day (starting from 0)
+	 * @return - Optional new JSONObject (empty, if there is no such day)
+	 */
+	public Optional<JSONObject> day(int day) {
+		if (day < 0 || day >= days) {
+			return Optional.empty();
+		}
+		JSONObject result = new JSONObject();
+		for (int column = 0; column < columns.length; column++) {
+			String text = values(column).texts[day];
+			if (text == null) {
+				continue;
+			}
+			if (numeric[column]) {
+				result.put(columns[column], new BigDecimal(text));
+			} else if (nested[column] && (text.startsWith("[") || text.startsWith("{"))) {
+				result.put(columns[column], new JSONTokener(text).nextValue());
+			} else {
+				result.put(columns[column], text);
+			}
+		}
+		return Optional.of(result);
+	}
+	
+	/**
+	 * Get a top-level value of the response (not nested in the days)
+	 * @param key - Key of the value (address, resolvedAddress, tzoffset, etc.)
+	 * @return - Optional value (nested values are new JSONObjects/JSONArrays)
+	 */
+	public Optional<Object> field(String key) {
+		Fields fields = fields();
+		Object value = fields.values.get(key);
+		if (value != null && fields.nested.contains(key)) {
+			return Optional.of(new JSONTokener((String) value).nextValue());
+		}
+		return Optional.ofNullable(value);
+	}
+	
+	/**
+	 * Get a top-level value as it is stored (nested values as JSON text)
+	 */
+	Object rawField(String key) {
+		return fields().values.get(key);
+	}
+	
+	/**
+	 * Whether the top-level value is a JSON array/object
+	 */
+	boolean isNestedField(String key) {
+		return fields().nested.contains(key);
+	}
+	
+	/**
+	 * Whether the column values are JSON arrays/objects (such as the hours of the day)
+	 * @param column - Index of the column
+	 * @return - true if the column holds JSON text
+	 */
+	public boolean isNested(int column) {
+		return nested[column];
+	}
+	
+	/**
+	 * Get the bytes, the forecast has been decoded from (so it is cached again without encoding)
+	 * @return - The cached bytes, or null if the forecast was parsed from JSON
+	 */
+	byte[] getSource() {
+		return source == null ? null : source.bytes();
+	}
+	
+	/**
+	 * Decodes all the parts of a cached forecast at once (otherwise they are decoded on the first access),
+	 * so that a corrupted one fails now, rather than when it is read
+	 * @return - Itself
+	 * @throws UncheckedIOException - If the cached bytes are corrupted
+	 */
+	Forecast decodeAll() {
+		if (source != null) {
+			fields();
+			for (int column = 0; column < columns.length; column++) {
+				values(column);
+			}
+		}
+		return this;
+	}
+	
+	/**
+	 * Get the keys of the top-level values
+	 * @return - An unmodifiable set of the keys
+	 */
+	public Set<String> getFields() {
+		return fields().values.keySet();
+	}
+	
+	/**
+	 * Creates a JSON response body from the model (the reverse of {@link #of(JSONObject)})
+	 * @return - A new JSONObject
+	 */
+	public JSONObject toJson() {
+		JSONObject result = new JSONObject();
+		getFields().forEach(key -> field(key).ifPresent(value -> result.put(key, value)));
+		List<JSONObject> dayObjects = new ArrayList<>(days);
+		for (int day = 0; day < days; day++) {
+			day(day).ifPresent(dayObjects::add);
+		}
+		result.put("days", new JSONArray(dayObjects));
+		return result;
+	}
+	
+	private Fields fields() {
+		Fields result = fields;
+		if (result == null) {
+			fields = result = source.fields(); // Decoding twice by concurrent readers is harmless
+		}
+		return result;
+	}
+	
+	private Column values(int column) {
+		Column result = values.get(column);
+		if (result == null) {
+			values.compareAndSet(column, null, source.column(column, days, numeric[column]));
+			result = values.get(column);
+		}
+		return result;
+	}
+	
+	/**
+	 * Top-level values of the response (nested ones - as JSON text)
+	 */
+	static final class Fields {
+		final Map<String, Object> values;
+		final Set<String> nested;
+		
+		Fields(Map<String, Object> values, Set<String> nested) {
+			this.values = values;
+			this.nested = nested;
+		}
+	}
+	
+	/**
+	 * Values of a day element
+	 */
+	static final class Column {
+		final double[] numbers; // Numeric values (NaN if absent), or null if the column is not numeric
+		final String[] texts; // Text values (null if absent)
+		
+		Column(double[] numbers, String[] texts) {
+			this.numbers = numbers;
+			this.texts = texts;
+		}
+	}
+	
+	/**
+	 * Decodes the parts of the forecast on demand (see {@link ForecastCodec})
+	 */
+	interface Source {
+		Fields fields();
+		
+		Column column(int column, int days, boolean numeric);
+		
+		byte[] bytes();
+	}
+}
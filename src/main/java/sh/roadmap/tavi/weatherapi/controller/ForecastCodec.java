@@ -0,0 +1,624 @@
+package sh.roadmap.tavi.weatherapi.controller;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.JSONTokener;
+
+/**
+ * A compact, versioned binary format of the {@link Forecast}, used for caching the responses in the database
+ * (it is several times smaller than the JSON text, and restoring it does not parse anything). <br>
+ * Layout (version 1): <br>
+ * - magic "WF", version byte; <br>
+ * - string table: every distinct string (keys, column names, text values) is written once and referenced by its index; <br>
+ * - top-level fields: key reference, type tag, value; <br>
+ * - days: for every column - name reference, kind, payload length, payload.
+ * The numeric columns are stored as fixed-point integers (scaled by the column scale),
+ * delta-encoded from day to day as zigzag varints. <br>
+ * Every number is restored with exactly the same text, as it was received (or the column is stored as text). <br>
+ * Decoding is lazy: only the string offsets and the column directory are read up front,
+ * the top-level values and the columns are decoded on the first access (and the strings - when they are referenced).
+ */
+public final class ForecastCodec {
+	
+	public static final int VERSION = 1;
+	
+	private static final byte MAGIC_W = 'W';
+	private static final byte MAGIC_F = 'F';
+	
+	// Field tags
+	private static final int TAG_STRING = 0;
+	private static final int TAG_NESTED = 1;
+	private static final int TAG_INTEGER = 2;
+	private static final int TAG_DECIMAL = 3;
+	private static final int TAG_DOUBLE = 4;
+	private static final int TAG_NUMBER_TEXT = 5;
+	private static final int TAG_TRUE = 6;
+	private static final int TAG_FALSE = 7;
+	
+	// Column kinds
+	private static final int KIND_NUMBER = 0; // Fixed-point, delta-encoded
+	private static final int KIND_NUMBER_TEXT = 1; // Numbers, which can't be restored exactly from fixed-point
+	private static final int KIND_TEXT = 2;
+	private static final int KIND_NESTED = 3;
+	
+	// Numeric column flags
+	private static final int HAS_MISSING = 1; // A presence bitmap follows
+	private static final int MIXED_SCALE = 2; // Every value has its own scale (e.g. "8.0" and "8.25" in the same column)
+	
+	private static final int MAX_SCALE = 18;
+	
+	private ForecastCodec() {}
+	
+	/**
+	 * Encodes the forecast to the binary format
+	 * @param forecast - Some forecast
+	 * @return - A new byte array
+	 */
+	public static byte[] encode(Forecast forecast) {
+		byte[] source = forecast.getSource();
+		if (source != null) {
+			return source.clone(); // Decoded from the cache and unchanged, so there's nothing to encode
+		}
+		
+		Writer strings = new Writer();
+		Map<String, Integer> table = new LinkedHashMap<>();
+		Writer body = new Writer();
+		
+		// Top-level fields
+		Set<String> keys = forecast.getFields();
+		body.varint(keys.size());
+		for (String key : keys) {
+			body.varint(ref(table, key));
+			writeField(body, table, forecast.rawField(key), forecast.isNestedField(key));
+		}
+		
+		// Days, by columns
+		int days = forecast.getDays();
+		List<String> columns = forecast.getColumns();
+		body.varint(days);
+		body.varint(columns.size());
+		Writer payload = new Writer();
+		for (int column = 0; column < columns.size(); column++) {
+			body.varint(ref(table, columns.get(column)));
+			payload.reset();
+			int kind;
+			if (forecast.isNumeric(column) && writeNumbers(payload, forecast, column)) {
+				kind = KIND_NUMBER;
+			} else {
+				payload.reset();
+				kind = forecast.isNumeric(column) ? KIND_NUMBER_TEXT : forecast.isNested(column) ? KIND_NESTED : KIND_TEXT;
+				for (int day = 0; day < days; day++) {
+					String text = forecast.getText(day, column);
+					payload.varint(text == null ? 0 : ref(table, text) + 1);
+				}
+			}
+			body.write(kind);
+			body.varint(payload.size());
+			body.write(payload);
+		}
+		
+		strings.write(MAGIC_W);
+		strings.write(MAGIC_F);
+		strings.write(VERSION);
+		strings.varint(table.size());
+		for (String string : table.keySet()) {
+			byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+			strings.varint(bytes.length);
+			strings.write(bytes, bytes.length);
+		}
+		strings.write(body);
+		return strings.toByteArray();
+	}
+	
+	/**
+	 * Decodes the forecast from the binary format. Only the layout is checked here;
+	 * the values are decoded on the first access (an {@link UncheckedIOException} is thrown then, if they are corrupted,
+	 * and nothing else)
+	 * @param data - Bytes, created with {@link #encode(Forecast)} (must not be changed afterwards)
+	 * @return - A new immutable Forecast, reading from the data
+	 * @throws IOException - If the data is not in the format, is of an unsupported version or is truncated
+	 */
+	public static Forecast decode(byte[] data) throws IOException {
+		Reader in = new Reader(data, 0);
+		if (in.byteValue() != MAGIC_W || in.byteValue() != MAGIC_F) {
+			throw new IOException("Not a cached forecast");
+		}
+		int version = in.byteValue();
+		if (version != VERSION) {
+			throw new IOException("Unsupported cached forecast version: " + version);
+		}
+		
+		Cached cached = new Cached(data, in.count(data.length));
+		for (int i = 0; i < cached.stringOffsets.length; i++) {
+			cached.stringLengths[i] = in.count();
+			cached.stringOffsets[i] = in.skip(cached.stringLengths[i]);
+		}
+		
+		// Skip the top-level values, remembering where they are
+		cached.fieldCount = in.count(data.length);
+		cached.fieldsOffset = in.position();
+		for (int i = 0; i < cached.fieldCount; i++) {
+			cached.string(in.count());
+			skipField(in, cached, in.byteValue());
+		}
+		
+		int days = in.count(Integer.MAX_VALUE);
+		int columnCount = in.count(data.length);
+		if (columnCount > 0 && days / 8 > data.length) {
+			throw new IOException("Corrupted days count: " + days);
+		}
+		String[] columns = new String[columnCount];
+		boolean[] numeric = new boolean[columnCount];
+		boolean[] nested = new boolean[columnCount];
+		cached.kinds = new int[columnCount];
+		cached.columnOffsets = new int[columnCount];
+		cached.columnLengths = new int[columnCount];
+		for (int column = 0; column < columnCount; column++) {
+			columns[column] = cached.string(in.count());
+			int kind = in.byteValue();
+			if (kind > KIND_NESTED) {
+				throw new IOException("Corrupted column kind: " + kind);
+			}
+			cached.kinds[column] = kind;
+			cached.columnLengths[column] = in.count();
+			cached.columnOffsets[column] = in.skip(cached.columnLengths[column]);
+			numeric[column] = kind == KIND_NUMBER || kind == KIND_NUMBER_TEXT;
+			nested[column] = kind == KIND_NESTED;
+		}
+		if (in.position() != data.length) {
+			throw new IOException("Corrupted cached forecast: unexpected data after the days");
+		}
+		
+		return new Forecast(null, days, columns, new Forecast.Column[columnCount], numeric, nested, cached);
+	}
+	
+	/**
+	 * Writes the numeric column as fixed-point deltas
+	 * @return - false if some value can't be restored exactly this way (the column should be stored as text then)
+	 */
+	private static boolean writeNumbers(Writer out, Forecast forecast, int column) {
+		int days = forecast.getDays();
+		BigDecimal[] values = new BigDecimal[days];
+		int columnScale = 0;
+		boolean missing = false;
+		for (int day = 0; day < days; day++) {
+			String text = forecast.getText(day, column);
+			if (text == null) {
+				missing = true;
+				continue;
+			}
+			try {
+				values[day] = new BigDecimal(text);
+			} catch (NumberFormatException e) {
+				return false;
+			}
+			if (values[day].scale() < 0 || values[day].scale() > MAX_SCALE) {
+				return false;
+			}
+			columnScale = Math.max(columnScale, values[day].scale());
+		}
+		
+		boolean mixed = false;
+		long[] scaled = new long[days];
+		for (int day = 0; day < days; day++) {
+			if (values[day] == null) {
+				continue;
+			}
+			mixed |= values[day].scale() != columnScale;
+			try {
+				scaled[day] = values[day].setScale(columnScale).unscaledValue().longValueExact();
+			} catch (ArithmeticException e) {
+				return false;
+			}
+			// The value must be restored with the same text and the same double
+			if (!toText(scaled[day], columnScale, values[day].scale()).equals(forecast.getText(day, column))
+					|| Double.compare(values[day].doubleValue(), forecast.getNumber(day, column)) != 0) {
+				return false;
+			}
+		}
+		
+		out.write(columnScale);
+		out.write((missing ? HAS_MISSING : 0) | (mixed ? MIXED_SCALE : 0));
+		if (missing) {
+			byte[] present = new byte[(days + 7) / 8];
+			for (int day = 0; day < days; day++) {
+				if (values[day] != null) {
+					present[day / 8] |= 1 << (day % 8);
+				}
+			}
+			out.write(present, present.length);
+		}
+		long previous = 0;
+		for (int day = 0; day < days; day++) {
+			if (values[day] == null) {
+				continue;
+			}
+			long delta;
+			try {
+				delta = Math.subtractExact(scaled[day], previous);
+			} catch (ArithmeticException e) {
+				return false;
+			}
+			out.varlong(zigzag(delta));
+			previous = scaled[day];
+		}
+		if (mixed) {
+			for (int day = 0; day < days; day++) {
+				if (values[day] != null) {
+					out.write(values[day].scale());
+				}
+			}
+		}
+		return true;
+	}
+	
+	private static void readNumbers(Reader in, int days, double[] numbers, String[] texts) throws IOException {
+		int columnScale = in.byteValue();
+		int flags = in.byteValue();
+		if (columnScale > MAX_SCALE) {
+			throw new IOException("Corrupted numeric column scale: " + columnScale);
+		}
+		int present = -1;
+		if ((flags & HAS_MISSING) != 0) {
+			present = in.skip((days + 7) / 8);
+		}
+		long[] scaled = new long[days];
+		long previous = 0;
+		for (int day = 0; day < days; day++) {
+			if (present >= 0 && (in.data[present + day / 8] & (1 << (day % 8))) == 0) {
+				numbers[day] = Double.NaN;
+				continue;
+			}
+			previous += unzigzag(in.varlong());
+			scaled[day] = previous;
+		}
+		for (int day = 0; day < days; day++) {
+			if (present >= 0 && (in.data[present + day / 8] & (1 << (day % 8))) == 0) {
+				continue;
+			}
+			int scale = (flags & MIXED_SCALE) != 0 ? in.byteValue() : columnScale;
+			if (scale > columnScale) {
+				throw new IOException("Corrupted numeric value scale: " + scale);
+			}
+			texts[day] = toText(scaled[day], columnScale, scale);
+			numbers[day] = columnScale == 0 ? scaled[day] : Double.parseDouble(texts[day]);
+		}
+	}
+	
+	private static String toText(long scaled, int columnScale, int scale) {
+		if (columnScale == 0) {
+			return Long.toString(scaled);
+		}
+		return BigDecimal.valueOf(scaled, columnScale).setScale(scale).toString();
+	}
+	
+	/**
+	 * Parses a number of a text column (a corrupted one fails here, rather than in {@link Forecast#day(int)})
+	 */
+	private static double number(String text) {
+		new BigDecimal(text); // Double.parseDouble alone would also accept "NaN", "1d", etc.
+		return Double.parseDouble(text); // Keeps "-0.0"
+	}
+	
+	private static void writeField(Writer out, Map<String, Integer> table, Object value, boolean nested) {
+		if (nested) {
+			out.write(TAG_NESTED);
+			out.varint(ref(table, (String) value));
+		} else if (value instanceof Boolean) {
+			out.write((Boolean) value ? TAG_TRUE : TAG_FALSE);
+		} else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+			out.write(TAG_INTEGER);
+			out.varlong(zigzag(((Number) value).longValue()));
+		} else if (value instanceof Double || value instanceof Float) {
+			out.write(TAG_DOUBLE);
+			out.fixed64(Double.doubleToRawLongBits(((Number) value).doubleValue()));
+		} else if (value instanceof BigDecimal && ((BigDecimal) value).scale() >= 0 && ((BigDecimal) value).scale() <= MAX_SCALE
+				&& ((BigDecimal) value).unscaledValue().bitLength() < 64) {
+			out.write(TAG_DECIMAL);
+			out.write(((BigDecimal) value).scale());
+			out.varlong(zigzag(((BigDecimal) value).unscaledValue().longValue()));
+		} else if (value instanceof Number) {
+			out.write(TAG_NUMBER_TEXT);
+			out.varint(ref(table, value.toString()));
+		} else {
+			out.write(TAG_STRING);
+			out.varint(ref(table, String.valueOf(value)));
+		}
+	}
+	
+	private static Object readField(Reader in, Cached table, int tag) throws IOException {
+		switch (tag) {
+		case TAG_STRING:
+		case TAG_NESTED:
+			return table.string(in.count());
+		case TAG_TRUE:
+			return Boolean.TRUE;
+		case TAG_FALSE:
+			return Boolean.FALSE;
+		case TAG_INTEGER:
+			long value = unzigzag(in.varlong());
+			return value == (int) value ? (Object) (int) value : (Object) value; // The way org.json parses the integers
+		case TAG_DOUBLE:
+			return Double.longBitsToDouble(in.fixed64());
+		case TAG_DECIMAL:
+			int scale = in.byteValue();
+			return BigDecimal.valueOf(unzigzag(in.varlong()), scale);
+		case TAG_NUMBER_TEXT:
+			try {
+				return new BigDecimal(table.string(in.count()));
+			} catch (NumberFormatException e) {
+				throw new IOException("Corrupted decimal field", e);
+			}
+		default:
+			throw new IOException("Corrupted field tag: " + tag);
+		}
+	}
+	
+	private static void skipField(Reader in, Cached table, int tag) throws IOException {
+		switch (tag) {
+		case TAG_STRING:
+		case TAG_NESTED:
+		case TAG_NUMBER_TEXT:
+			table.string(in.count());
+			break;
+		case TAG_TRUE:
+		case TAG_FALSE:
+			break;
+		case TAG_INTEGER:
+			in.varlong();
+			break;
+		case TAG_DOUBLE:
+			in.skip(8);
+			break;
+		case TAG_DECIMAL:
+			in.byteValue();
+			in.varlong();
+			break;
+		default:
+			throw new IOException("Corrupted field tag: " + tag);
+		}
+	}
+	
+	private static int ref(Map<String, Integer> table, String string) {
+		Integer index = table.putIfAbsent(string, table.size());
+		return index == null ? table.size() - 1 : index;
+	}
+	
+	private static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+	
+	private static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+	
+	/**
+	 * Growable byte buffer with the varint encoding
+	 */
+	private static final class Writer extends ByteArrayOutputStream {
+		
+		void varint(int value) {
+			varlong(value & 0xFFFFFFFFL);
+		}
+		
+		void varlong(long value) {
+			while ((value & ~0x7FL) != 0) {
+				write((int) ((value & 0x7F) | 0x80));
+				value >>>= 7;
+			}
+			write((int) value);
+		}
+		
+		void fixed64(long value) {
+			for (int i = 0; i < 8; i++) {
+				write((int) (value >>> (i * 8)));
+			}
+		}
+		
+		void write(byte[] bytes, int length) {
+			write(bytes, 0, length);
+		}
+		
+		void write(Writer other) {
+			write(other.buf, 0, other.count);
+		}
+	}
+	
+	/**
+	 * The encoded bytes with the offsets of their parts, which the {@link Forecast} decodes from on demand
+	 */
+	private static final class Cached implements Forecast.Source {
+		private final byte[] data;
+		
+		private final int[] stringOffsets;
+		private final int[] stringLengths;
+		private final String[] strings; // Decoded strings (on demand)
+		
+		private int fieldsOffset;
+		private int fieldCount;
+		
+		private int[] kinds;
+		private int[] columnOffsets;
+		private int[] columnLengths;
+		
+		Cached(byte[] data, int stringCount) {
+			this.data = data;
+			stringOffsets = new int[stringCount];
+			stringLengths = new int[stringCount];
+			strings = new String[stringCount];
+		}
+		
+		String string(int index) throws IOException {
+			if (index < 0 || index >= strings.length) {
+				throw new IOException("Corrupted string reference: " + index);
+			}
+			String result = strings[index];
+			if (result == null) {
+				// Strings are immutable, so the concurrent readers may only decode the same string twice
+				strings[index] = result = new String(data, stringOffsets[index], stringLengths[index], StandardCharsets.UTF_8);
+			}
+			return result;
+		}
+		
+		@Override
+		public Forecast.Fields fields() {
+			try {
+				Reader in = new Reader(data, fieldsOffset);
+				Map<String, Object> fields = new HashMap<>(fieldCount * 2);
+				Set<String> nestedFields = new HashSet<>();
+				for (int i = 0; i < fieldCount; i++) {
+					String key = string(in.count());
+					int tag = in.byteValue();
+					Object value = readField(in, this, tag);
+					if (tag == TAG_NESTED) {
+						nestedFields.add(key);
+						checkNested((String) value);
+					}
+					if (fields.put(key, value) != null) {
+						throw new IOException("Corrupted field key: " + key);
+					}
+				}
+				return new Forecast.Fields(Collections.unmodifiableMap(fields), Collections.unmodifiableSet(nestedFields));
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		
+		@Override
+		public Forecast.Column column(int column, int days, boolean numeric) {
+			try {
+				Reader in = new Reader(data, columnOffsets[column]);
+				String[] texts = new String[days];
+				double[] numbers = numeric ? new double[days] : null;
+				if (kinds[column] == KIND_NUMBER) {
+					readNumbers(in, days, numbers, texts);
+				} else {
+					for (int day = 0; day < days; day++) {
+						int ref = in.count();
+						texts[day] = ref == 0 ? null : string(ref - 1);
+						if (kinds[column] == KIND_NESTED && texts[day] != null && (texts[day].startsWith("[") || texts[day].startsWith("{"))) {
+							checkNested(texts[day]); // The other texts are not parsed (see Forecast#day(int))
+						}
+					}
+					if (numeric) {
+						for (int day = 0; day < days; day++) {
+							numbers[day] = texts[day] == null ? Double.NaN : number(texts[day]);
+						}
+					}
+				}
+				if (in.position() != columnOffsets[column] + columnLengths[column]) {
+					throw new IOException("Corrupted column: " + column);
+				}
+				return new Forecast.Column(numbers, texts);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			} catch (NumberFormatException | ArithmeticException e) { // A corrupted digit or scale
+				throw new UncheckedIOException(new IOException("Corrupted numeric column: " + column, e));
+			}
+		}
+		
+		/**
+		 * Checks, that the nested value is valid JSON (it is parsed on every read, so a corrupted one would fail every time)
+		 */
+		private static void checkNested(String text) throws IOException {
+			try {
+				new JSONTokener(text).nextValue();
+			} catch (RuntimeException e) { // A JSONException, or a failure of the parser itself on the garbage
+				throw new IOException("Corrupted nested value", e);
+			}
+		}
+		
+		@Override
+		public byte[] bytes() {
+			return data;
+		}
+	}
+	
+	/**
+	 * Cursor over the encoded bytes
+	 */
+	private static final class Reader {
+		private final byte[] data;
+		private int position;
+		
+		Reader(byte[] data, int position) {
+			this.data = data;
+			this.position = position;
+		}
+		
+		int position() {
+			return position;
+		}
+		
+		int byteValue() throws IOException {
+			if (position >= data.length) {
+				throw new EOFException("Truncated cached forecast");
+			}
+			return data[position++] & 0xFF;
+		}
+		
+		/**
+		 * Skips the bytes
+		 * @return - The position of the first skipped byte
+		 */
+		int skip(int length) throws IOException {
+			if (length < 0 || length > data.length - position) {
+				throw new EOFException("Truncated cached forecast");
+			}
+			int start = position;
+			position += length;
+			return start;
+		}
+		
+		long varlong() throws IOException {
+			long result = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = byteValue();
+				result |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return result;
+				}
+			}
+			throw new IOException("Corrupted varint");
+		}
+		
+		/**
+		 * Reads a non-negative varint (a length or a reference)
+		 */
+		int count() throws IOException {
+			return count(Integer.MAX_VALUE);
+		}
+		
+		/**
+		 * Reads a non-negative varint, which is used as the size of an array (so it is limited, if the data is corrupted)
+		 */
+		int count(int max) throws IOException {
+			long value = varlong();
+			if (value < 0 || value > max) {
+				throw new IOException("Corrupted count: " + value);
+			}
+			return (int) value;
+		}
+		
+		long fixed64() throws IOException {
+			long result = 0;
+			for (int i = 0; i < 8; i++) {
+				result |= (long) byteValue() << (i * 8);
+			}
+			return result;
+		}
+	}
+}
@@ -0,0 +1,329 @@
+package sh.roadmap.tavi.weatherapi.controller;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.UncheckedIOException;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Supplier;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * Decodes the Visual Crossing (timeline) response right from the byte stream, without buffering the whole body
+ * and without building the full JSON tree: only the top-level values and the requested day elements are kept,
+ * everything else (hourly data, stations, etc.) is skipped as it is read.
+ */
+public class ForecastDecoder {
+	
+	private final Set<String> elements;
+	private final Set<String> include;
+	
+	/**
+	 * Creates a decoder, keeping only the specified parts of the response
+	 * @param elements - The "elements" of the days to keep (all of them, if empty)
+	 * @param include - The "include" sections to keep (for example, "hours", "alerts", "current"); the "days" are always kept
+	 */
+	public ForecastDecoder(Set<String> elements, Set<String> include) {
+		this.elements = elements;
+		this.include = include;
+	}
+	
+	// The value of the "Accept-Encoding" request header: the compressed bodies the handler is able to decode
+	public static final String ACCEPT_ENCODING = "gzip, deflate";
+	
+	/**
+	 * A body handler for the HTTP client, which decodes the response as it is received. <br>
+	 * Compressed bodies (gzip or deflate "Content-Encoding") are decompressed on the fly, on the way to the decoder.
+	 * The bodies of the error responses (non-2xx statuses) are read as a whole and supplied as an {@link UpstreamException}. <br>
+	 * The decoding itself is deferred until {@link Supplier#get()}, so that the (blocking) reading of the stream
+	 * runs on the caller's executor, not on the HTTP client's threads.
+	 * @return - A BodyHandler, supplying the decoded compact response body
+	 */
+	public HttpResponse.BodyHandler<Supplier<JSONObject>> bodyHandler() {
+		return responseInfo -> {
+			String encoding = responseInfo.headers().firstValue("Content-Encoding").orElse("identity").trim().toLowerCase();
+			int statusCode = responseInfo.statusCode();
+			if (statusCode / 100 != 2) {
+				return HttpResponse.BodySubscribers.mapping(
+						HttpResponse.BodySubscribers.ofByteArray(),
+						bytes -> () -> {
+							String message;
+							try (InputStream in = decompressed(new ByteArrayInputStream(bytes), encoding)) {
+								message = new String(in.readAllBytes(), StandardCharsets.UTF_8).trim();
+							} catch (IOException e) {
+								message = "(unreadable)";
+							}
+							throw new UncheckedIOException(new UpstreamException(statusCode, message));
+						});
+			}
+			return HttpResponse.BodySubscribers.mapping(
+					HttpResponse.BodySubscribers.ofInputStream(),
+					in -> () -> {
+						try {
+							return decode(decompressed(in, encoding));
+						} catch (IOException e) {
+							throw new UncheckedIOException(e);
+						}
+					});
+		};
+	}
+	
+	/**
+	 * Wraps the body stream into a decompressing one (the body is inflated as it is read, never as a whole)
+	 * @param body - InputStream of the response body
+	 * @param encoding - "Content-Encoding" of the response ("gzip", "deflate" or "identity")
+	 * @return - InputStream of the decompressed body (the compressed body is read to its end, when it is closed)
+	 * @throws IOException - If the compressed stream is corrupted
+	 */
+	private static InputStream decompressed(InputStream body, String encoding) throws IOException {
+		// The decompressing stream stops at the end of the compressed data, and the body may go on a little
+		InputStream in = encoding.equals("identity") ? body : new FilterInputStream(body) {
+			@Override
+			public void close() throws IOException {
+				try {
+					drain(this.in);
+				} finally {
+					super.close();
+				}
+			}
+		};
+		switch (encoding) {
+		case "gzip":
+		case "x-gzip":
+			return new GZIPInputStream(in, 8192);
+		case "deflate":
+			// "deflate" must be a zlib stream, but some servers send the raw deflate data; the zlib header tells them apart
+			PushbackInputStream pushback = new PushbackInputStream(in, 2);
+			int cmf = pushback.read();
+			int flg = pushback.read();
+			if (flg >= 0) {
+				pushback.unread(flg);
+			}
+			if (cmf >= 0) {
+				pushback.unread(cmf);
+			}
+			boolean zlib = cmf >= 0 && flg >= 0 && (cmf & 0x0F) == 8 && ((cmf << 8) | flg) % 31 == 0;
+			Inflater inflater = new Inflater(!zlib);
+			return new InflaterInputStream(pushback, inflater, 8192) {
+				@Override
+				public void close() throws IOException {
+					super.close();
+					inflater.end();
+				}
+			};
+		default:
+			return in;
+		}
+	}
+	
+	/**
+	 * Reads the rest of the stream. The HTTP client keeps the connection only if the body has been read to its end:
+	 * closing it earlier cancels the HTTP/2 stream or drops the HTTP/1.1 connection
+	 * @param in - InputStream of the response body
+	 * @throws IOException - If the stream could not be read
+	 */
+	private static void drain(InputStream in) throws IOException {
+		in.transferTo(OutputStream.nullOutputStream());
+	}
+	
+	/**
+	 * Decodes the response body from the stream (reads it to its end and closes it)
+	 * @param in - InputStream of the JSON response body
+	 * @return - Compact JSONObject with the kept parts of the response
+	 * @throws JSONException - If the body is not a JSON object (for example, the server has sent an error message)
+	 */
+	public JSONObject decode(InputStream in) {
+		try (InputStream stream = in) {
+			JSONTokener tokener = new JSONTokener(stream);
+			JSONObject result = new JSONObject();
+			
+			expect(tokener, '{');
+			if (!isEnd(tokener, '}')) {
+				do {
+					String key = nextKey(tokener);
+					if (key.equals("days")) {
+						result.put(key, nextDays(tokener));
+					} else if (isIncluded(key)) {
+						result.put(key, tokener.nextValue());
+					} else {
+						skipOrScalar(tokener).ifPresent(value -> result.put(key, value));
+					}
+				} while (nextInObject(tokener));
+			}
+			drain(stream); // The trailing whitespace, etc.
+			return result;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	/**
+	 * Reads the "days" array, keeping only the requested elements of each day
+	 * @param tokener - Tokener, positioned before the array
+	 * @return - Compact JSONArray of the days
+	 */
+	private JSONArray nextDays(JSONTokener tokener) {
+		JSONArray days = new JSONArray();
+		expect(tokener, '[');
+		if (isEnd(tokener, ']')) {
+			return days;
+		}
+		do {
+			JSONObject day = new JSONObject();
+			expect(tokener, '{');
+			if (!isEnd(tokener, '}')) {
+				do {
+					String key = nextKey(tokener);
+					if (elements.isEmpty() || elements.contains(key) || (key.equals("hours") && include.contains("hours"))) {
+						day.put(key, tokener.nextValue());
+					} else {
+						skipValue(tokener);
+					}
+				} while (nextInObject(tokener));
+			}
+			days.put(day);
+			
+			char c = tokener.nextClean();
+			if (c == ']') {
+				break;
+			}
+			if (c != ',') {
+				throw tokener.syntaxError("Expected a ',' or ']'");
+			}
+		} while (true);
+		return days;
+	}
+	
+	/**
+	 * Whether a top-level section (an object or an array) of the response is requested
+	 * @param key - Top-level key of the response
+	 * @return - true, if the section is in the "include" parameter
+	 */
+	private boolean isIncluded(String key) {
+		return include.contains(key) || (key.equals("currentConditions") && include.contains("current"));
+	}
+	
+	/**
+	 * Reads a scalar value, or skips an object/array value
+	 * @param tokener - Tokener, positioned before the value
+	 * @return - Optional value (empty, if it was an object or an array)
+	 */
+	private Optional<Object> skipOrScalar(JSONTokener tokener) {
+		char c = tokener.nextClean();
+		tokener.back();
+		if (c == '{' || c == '[') {
+			skipValue(tokener);
+			return Optional.empty();
+		}
+		return Optional.of(tokener.nextValue());
+	}
+	
+	/**
+	 * Skips the next value without creating it
+	 * @param tokener - Tokener, positioned before the value
+	 */
+	private static void skipValue(JSONTokener tokener) {
+		char c = tokener.nextClean();
+		if (c == '"' || c == '\'') {
+			tokener.nextString(c);
+			return;
+		}
+		if (c != '{' && c != '[') {
+			tokener.back();
+			tokener.nextValue(); // A number or a literal: small enough
+			return;
+		}
+		int depth = 1;
+		while (depth > 0) {
+			c = tokener.next();
+			switch (c) {
+			case 0:
+				throw tokener.syntaxError("Unterminated object or array");
+			case '"':
+			case '\'':
+				tokener.nextString(c);
+				break;
+			case '{':
+			case '[':
+				depth++;
+				break;
+			case '}':
+			case ']':
+				depth--;
+				break;
+			default:
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * Reads the key of an object's entry (and the colon after it)
+	 * @param tokener - Tokener, positioned before the key
+	 * @return - The key
+	 */
+	private static String nextKey(JSONTokener tokener) {
+		char c = tokener.nextClean();
+		if (c != '"' && c != '\'') {
+			throw tokener.syntaxError("Expected a quoted key");
+		}
+		String key = tokener.nextString(c);
+		expect(tokener, ':');
+		return key;
+	}
+	
+	/**
+	 * Reads the separator after an object's entry
+	 * @param tokener - Tokener, positioned after the entry
+	 * @return - true if there are more entries, false if the object has ended
+	 */
+	private static boolean nextInObject(JSONTokener tokener) {
+		char c = tokener.nextClean();
+		if (c == ',') {
+			return true;
+		}
+		if (c == '}') {
+			return false;
+		}
+		throw tokener.syntaxError("Expected a ',' or '}'");
+	}
+	
+	/**
+	 * Checks (and consumes) the closing bracket of an empty object or array
+	 * @param tokener - Tokener, positioned after the opening bracket
+	 * @param end - The closing bracket
+	 * @return - true, if the object or array is empty
+	 */
+	private static boolean isEnd(JSONTokener tokener, char end) {
+		if (tokener.nextClean() == end) {
+			return true;
+		}
+		tokener.back();
+		return false;
+	}
+	
+	/**
+	 * Consumes the expected character (white spaces are skipped)
+	 * @param tokener - The tokener to read from
+	 * @param expected - The expected character
+	 */
+	private static void expect(JSONTokener tokener, char expected) {
+		if (tokener.nextClean() != expected) {
+			throw tokener.syntaxError("Expected a '" + expected + "'");
+		}
+	}
+}
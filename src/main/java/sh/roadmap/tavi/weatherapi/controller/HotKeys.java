@@ -0,0 +1,128 @@
+package sh.roadmap.tavi.weatherapi.controller;
+
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * How often every request has been sent, saved to a file between the runs (to warm the cache up at start-up,
+ * see {@link WeatherController#warmUpCache()}). <br>
+ * The keys are kept as they were requested (with the relative dates, like "next7days"), so they are resolved anew
+ * on every start. The counts are halved on every start, so that the old favourites fade out
+ */
+final class HotKeys {
+	
+	private static final int MAX_KEYS = 1000; // The least requested keys are dropped, when there are more
+	private static final int SAVE_EVERY = 20; // Requests between the saves
+	
+	private final Path path;
+	private final Map<RequestKey, AtomicLong> counts = new ConcurrentHashMap<>();
+	private final AtomicInteger unsaved = new AtomicInteger();
+	
+	/**
+	 * Reads the saved counts (if the file is absent or corrupted, the counting starts anew)
+	 * @param path - The file of the counts
+	 */
+	HotKeys(Path path) {
+		this.path = path;
+		if (!Files.exists(path)) {
+			return;
+		}
+		try {
+			JSONArray saved = new JSONArray(Files.readString(path));
+			for (int i = 0; i < saved.length(); i++) {
+				JSONObject entry = saved.getJSONObject(i);
+				long hits = entry.optLong("hits") / 2;
+				if (hits > 0) {
+					counts.put(new RequestKey(entry.getString("location"), entry.getString("forDate"), entry.optString("lang", null),
+							strings(entry.optJSONArray("include")), strings(entry.optJSONArray("elements"))), new AtomicLong(hits));
+				}
+			}
+		} catch (IOException | JSONException e) {
+			counts.clear();
+		}
+	}
+	
+	/**
+	 * Counts the request
+	 * @param key - All the parameters of the request (before the dates are resolved)
+	 * @return - true if it is time to save the counts
+	 */
+	boolean record(RequestKey key) {
+		if (key.getLocation() == null || key.getForDate() == null) {
+			return false;
+		}
+		counts.computeIfAbsent(key, k -> new AtomicLong()).incrementAndGet();
+		if (counts.size() > MAX_KEYS) {
+			trim();
+		}
+		return unsaved.incrementAndGet() % SAVE_EVERY == 0;
+	}
+	
+	/**
+	 * Get the most requested keys
+	 * @param limit - How many keys to return
+	 * @return - The keys, the most requested first
+	 */
+	List<RequestKey> top(int limit) {
+		return counts.entrySet().stream()
+				.sorted(Comparator.comparingLong((Map.Entry<RequestKey, AtomicLong> entry) -> entry.getValue().get()).reversed())
+				.limit(limit)
+				.map(Map.Entry::getKey)
+				.collect(Collectors.toList());
+	}
+	
+	/**
+	 * Writes the counts to the file
+	 * @throws IOException - If the file is not writable
+	 */
+	synchronized void save() throws IOException {
+		JSONArray result = new JSONArray();
+		for (RequestKey key : top(MAX_KEYS)) {
+			long hits = counts.getOrDefault(key, new AtomicLong()).get();
+			result.put(new JSONObject()
+					.put("location", key.getLocation())
+					.put("forDate", key.getForDate())
+					.put("lang", key.getLang())
+					.put("include", new JSONArray(key.getInclude()))
+					.put("elements", new JSONArray(key.getElements()))
+					.put("hits", hits));
+		}
+		Files.writeString(path, result.toString());
+		unsaved.set(0);
+	}
+	
+	/**
+	 * Drops the less requested half of the keys
+	 */
+	private synchronized void trim() {
+		if (counts.size() <= MAX_KEYS) {
+			return;
+		}
+		List<RequestKey> keep = top(MAX_KEYS / 2);
+		counts.keySet().retainAll(keep);
+	}
+	
+	private static List<String> strings(JSONArray array) {
+		List<String> result = new ArrayList<>();
+		if (array != null) {
+			for (int i = 0; i < array.length(); i++) {
+				result.add(array.getString(i));
+			}
+		}
+		return result;
+	}
+}
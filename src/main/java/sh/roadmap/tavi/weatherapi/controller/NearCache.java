@@ -0,0 +1,107 @@
+package sh.roadmap.tavi.weatherapi.controller;
+
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * The in-memory tier in front of the database service: the last used responses, by their cache keys. <br>
+ * It is small (the least recently used responses are dropped first) and short-lived (a response is not served after
+ * the "max age", so it is never much older than the one in the database). The older responses are still kept
+ * as the last good copies, while the server is not available (see {@link #lastGood(String)})
+ */
+final class NearCache {
+	
+	private final int capacity;
+	private final long maxAgeMillis;
+	private final Map<String, Entry> entries;
+	
+	/**
+	 * Creates an empty cache
+	 * @param capacity - How many responses are kept (0 to keep none)
+	 * @param maxAge - How long a response is kept
+	 */
+	NearCache(int capacity, Duration maxAge) {
+		this.capacity = Math.max(0, capacity);
+		this.maxAgeMillis = maxAge.toMillis();
+		this.entries = new LinkedHashMap<>(16, 0.75f, true) { // In the order of the access
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > NearCache.this.capacity;
+			}
+		};
+	}
+	
+	/**
+	 * Get the response, unless it has been dropped
+	 * @param cacheKey - The key of the response (see {@link RequestKey#toCacheKey()})
+	 * @return - Optional forecast
+	 */
+	synchronized Optional<Forecast> get(String cacheKey) {
+		Entry entry = entries.get(cacheKey);
+		if (entry == null) {
+			return Optional.empty();
+		}
+		if (System.currentTimeMillis() - entry.storedAt > maxAgeMillis) {
+			return Optional.empty();
+		}
+		return Optional.of(entry.forecast);
+	}
+	
+	/**
+	 * Get the response, however old it is
+	 * @param cacheKey - The key of the response (see {@link RequestKey#toCacheKey()})
+	 * @return - Optional forecast (empty, if it has been dropped or changed by another instance)
+	 */
+	synchronized Optional<Forecast> lastGood(String cacheKey) {
+		return Optional.ofNullable(entries.get(cacheKey)).map(entry -> entry.forecast);
+	}
+	
+	/**
+	 * Keeps the response (replaces the one with the same key)
+	 * @param cacheKey - The key of the response (see {@link RequestKey#toCacheKey()})
+	 * @param forecast - The response body
+	 */
+	synchronized void put(String cacheKey, Forecast forecast) {
+		if (capacity > 0) {
+			entries.put(cacheKey, new Entry(forecast, System.currentTimeMillis()));
+		}
+	}
+	
+	/**
+	 * Drops the response
+	 * @param cacheKey - The key of the response (see {@link RequestKey#toCacheKey()})
+	 * @return - true if it has been kept
+	 */
+	synchronized boolean evict(String cacheKey) {
+		return entries.remove(cacheKey) != null;
+	}
+	
+	/**
+	 * Drops all the responses
+	 */
+	synchronized void clear() {
+		entries.clear();
+	}
+	
+	/**
+	 * @return - How many responses are kept at the moment
+	 */
+	synchronized int size() {
+		return entries.size();
+	}
+	
+	private static final class Entry {
+		private final Forecast forecast;
+		private final long storedAt;
+		
+		private Entry(Forecast forecast, long storedAt) {
+			this.forecast = forecast;
+			this.storedAt = storedAt;
+		}
+	}
+}
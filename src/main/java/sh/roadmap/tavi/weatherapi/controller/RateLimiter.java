@@ -0,0 +1,111 @@
+package sh.roadmap.tavi.weatherapi.controller;
+
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A token bucket, limiting the requests to the Visual Crossing server. <br>
+ * The bucket is refilled with "rate" tokens per second and holds up to "burst" tokens; each request takes one token.
+ * If the bucket is empty, the caller is queued (the token is reserved in advance) instead of being rejected,
+ * unless it would have to wait longer than its deadline.
+ */
+public class RateLimiter {
+	
+	// The limits are per API key: all the controllers using the same key share one bucket
+	private static final Map<String, RateLimiter> limiters = new ConcurrentHashMap<>();
+	
+	private final double rate; // Tokens per second
+	private final double burst; // Capacity of the bucket
+	
+	private double tokens; // May be negative: the tokens, reserved by the queued callers
+	private long lastRefill;
+	
+	/**
+	 * Creates a full token bucket
+	 * @param rate - How many requests per second are allowed on average
+	 * @param burst - How many requests may be sent at once
+	 */
+	public RateLimiter(double rate, int burst) {
+		if (rate <= 0 || burst < 1) {
+			throw new IllegalArgumentException("Rate must be positive and burst must be at least 1");
+		}
+		this.rate = rate;
+		this.burst = burst;
+		tokens = burst;
+		lastRefill = System.nanoTime();
+	}
+	
+	/**
+	 * Get the token bucket of the API key (it is created with the specified limits, if there is none yet)
+	 * @param apiKey - The API key the limits apply to
+	 * @param rate - How many requests per second are allowed on average
+	 * @param burst - How many requests may be sent at once
+	 * @return - The RateLimiter shared by all the users of the API key
+	 */
+	public static RateLimiter forKey(String apiKey, double rate, int burst) {
+		return limiters.computeIfAbsent(String.valueOf(apiKey), key -> new RateLimiter(rate, burst));
+	}
+	
+	/**
+	 * Waits (without blocking) for a token
+	 * @param deadline - The longest time the caller agrees to wait in the queue
+	 * @param executor - An Executor to continue on after waiting
+	 * @return - A future, completed when the request may be sent;
+	 * completed exceptionally with a TimeoutException, if the wait would be longer than the deadline
+	 */
+	public CompletableFuture<Void> acquire(Duration deadline, Executor executor) {
+		long wait = reserve(deadline.toNanos());
+		if (wait == 0) {
+			return CompletableFuture.completedFuture(null);
+		}
+		if (wait < 0) {
+			return CompletableFuture.failedFuture(new TimeoutException(
+					"Rate limit exceeded: could not send the request within " + deadline.toMillis() + " ms"));
+		}
+		return CompletableFuture.runAsync(() -> {}, CompletableFuture.delayedExecutor(wait, TimeUnit.NANOSECONDS, executor));
+	}
+	
+	/**
+	 * Takes a token, or reserves the next one to be added to the bucket
+	 * @param maxWait - The longest acceptable wait (nanoseconds)
+	 * @return - 0 if a token is taken, the time to wait for the reserved token (nanoseconds), or -1 if it is longer than maxWait
+	 */
+	private synchronized long reserve(long maxWait) {
+		long now = System.nanoTime();
+		tokens = Math.min(burst, tokens + (now - lastRefill) * rate / 1e9);
+		lastRefill = now;
+		
+		if (tokens >= 1) {
+			tokens -= 1;
+			return 0;
+		}
+		long wait = (long) Math.ceil((1 - tokens) / rate * 1e9);
+		if (wait > maxWait) {
+			return -1;
+		}
+		tokens -= 1;
+		return wait;
+	}
+	
+	/**
+	 * Get the average rate of the bucket
+	 * @return - Requests per second
+	 */
+	public double getRate() {
+		return rate;
+	}
+	
+	/**
+	 * Get the capacity of the bucket
+	 * @return - How many requests may be sent at once
+	 */
+	public int getBurst() {
+		return (int) burst;
+	}
+}
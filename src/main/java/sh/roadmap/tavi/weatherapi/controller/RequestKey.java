@@ -0,0 +1,182 @@
+package sh.roadmap.tavi.weatherapi.controller;
+
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * All the parameters of a single request to the Visual Crossing server.
+ * Two requests with equal keys receive the same response, so the key is used to share the responses between callers
+ * and to cache them (see {@link #toCacheKey()}). <br>
+ * The parameters are normalized: " London " and "london" are the same location, "Next1Days" and "next1days" are the same dates, etc.
+ * The unit system is not a part of the key: the forecasts are always requested in the {@link UnitSystem#CANONICAL} unit group.
+ */
+public final class RequestKey {
+	
+	private final String location;
+	private final String forDate;
+	private final String lang;
+	private final SortedSet<String> include;
+	private final SortedSet<String> elements;
+	
+	/**
+	 * Creates an immutable (normalized) key of the request
+	 * @param location - The location
+	 * @param forDate - The date (or the dates range) of the request
+	 * @param lang - The language of the response ("en", "ru", "de", etc.)
+	 * @param include - The "include" parameter of the request
+	 * @param elements - The "elements" parameter of the request
+	 */
+	public RequestKey(String location, String forDate, String lang, Collection<String> include, Collection<String> elements) {
+		this.location = location == null ? null : normalize(location).replaceAll("\\s+", "_");
+		this.forDate = forDate == null ? null : normalize(forDate);
+		this.lang = lang == null ? null : normalize(lang);
+		this.include = normalize(include);
+		this.elements = normalize(elements);
+	}
+	
+	private RequestKey(RequestKey other, String forDate, SortedSet<String> elements) {
+		this.location = other.location;
+		this.forDate = forDate;
+		this.lang = other.lang;
+		this.include = other.include;
+		this.elements = elements;
+	}
+	
+	/**
+	 * Creates the key of the same request for other dates
+	 * @param forDate - The date (or the dates range) of the request
+	 * @return - A new key
+	 */
+	public RequestKey withForDate(String forDate) {
+		return new RequestKey(this, forDate == null ? null : normalize(forDate), elements);
+	}
+	
+	/**
+	 * Creates the key of the same request for other elements
+	 * @param elements - The "elements" parameter of the request
+	 * @return - A new key
+	 */
+	public RequestKey withElements(Collection<String> elements) {
+		return new RequestKey(this, forDate, normalize(elements));
+	}
+	
+	/**
+	 * Get the key, under which the response to this request is cached by the database service. <br>
+	 * The key covers every parameter of the request, so a cached response is served only for exactly the same request.
+	 * @return - A String like "weather:london:next1days:en:days:datetime,temp"
+	 */
+	public String toCacheKey() {
+		return String.join(":", "weather",
+				location == null ? "" : URLEncoder.encode(location, StandardCharsets.UTF_8),
+				String.valueOf(forDate), String.valueOf(lang),
+				String.join(",", include), String.join(",", elements));
+	}
+	
+	/**
+	 * Get the key, under which a single day of the response to this request is cached by the database service
+	 * (see {@link WeatherController#sendRequestAsync(String, String)}). The key covers every parameter of the request,
+	 * except the dates and the elements: the day is shared by the requests for any of its elements (it is tagged with them).
+	 * @param day - The date of the day
+	 * @return - A String like "weather:london:day:2024-05-01:en:days"
+	 */
+	public String toDayCacheKey(LocalDate day) {
+		return String.join(":", "weather",
+				location == null ? "" : URLEncoder.encode(location, StandardCharsets.UTF_8),
+				"day", day.toString(), String.valueOf(lang),
+				String.join(",", include));
+	}
+	
+	/**
+	 * @return - The location of the request
+	 */
+	public String getLocation() {
+		return location;
+	}
+	
+	/**
+	 * @return - The date (or the dates range) of the request
+	 */
+	public String getForDate() {
+		return forDate;
+	}
+	
+	/**
+	 * @return - The language of the request
+	 */
+	public String getLang() {
+		return lang;
+	}
+	
+	/**
+	 * @return - The "include" parameter (sorted, unmodifiable)
+	 */
+	public SortedSet<String> getInclude() {
+		return include;
+	}
+	
+	/**
+	 * @return - The "elements" parameter (sorted, unmodifiable)
+	 */
+	public SortedSet<String> getElements() {
+		return elements;
+	}
+	
+	/**
+	 * Trims the value, converts it to lower case
+	 * @param value - A parameter of the request
+	 * @return - Normalized value
+	 */
+	private static String normalize(String value) {
+		return value.trim().toLowerCase(Locale.ROOT);
+	}
+	
+	/**
+	 * Normalizes each of the values (empty ones are dropped), sorts them
+	 * @param values - A list parameter of the request
+	 * @return - Normalized sorted unmodifiable set
+	 */
+	private static SortedSet<String> normalize(Collection<String> values) {
+		SortedSet<String> result = new TreeSet<>();
+		for (String value : values) {
+			if (value != null && !value.isBlank()) {
+				result.add(normalize(value));
+			}
+		}
+		return Collections.unmodifiableSortedSet(result);
+	}
+	
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof RequestKey)) {
+			return false;
+		}
+		RequestKey other = (RequestKey) obj;
+		return Objects.equals(location, other.location)
+				&& Objects.equals(forDate, other.forDate)
+				&& Objects.equals(lang, other.lang)
+				&& include.equals(other.include)
+				&& elements.equals(other.elements);
+	}
+	
+	@Override
+	public int hashCode() {
+		return Objects.hash(location, forDate, lang, include, elements);
+	}
+	
+	@Override
+	public String toString() {
+		return location + "/" + forDate + "?unitGroup=" + UnitSystem.CANONICAL.getId() + "&lang=" + lang
+				+ "&include=" + String.join(",", include) + "&elements=" + String.join(",", elements);
+	}
+}
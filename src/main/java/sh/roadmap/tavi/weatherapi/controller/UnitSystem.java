@@ -0,0 +1,182 @@
+package sh.roadmap.tavi.weatherapi.controller;
+
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Map;
+import java.util.Optional;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * The unit groups of the Visual Crossing web service. <br>
+ * The forecasts are always requested (and cached) in the {@link #CANONICAL} unit group and converted locally, when they are read,
+ * so switching the unit system never requires to fetch the forecast again. <br>
+ * Unit groups (temperature / precipitation / snow / wind / visibility / pressure): <br>
+ * us - F / in / in / mph / mi / mb <br>
+ * uk - C / mm / cm / mph / mi / mb <br>
+ * metric - C / mm / cm / km/h / km / mb <br>
+ * base - K / mm / cm / m/s / km / mb
+ */
+public enum UnitSystem {
+	US("us", "F"),
+	UK("uk", "C"),
+	METRIC("metric", "C"),
+	BASE("base", "K");
+	
+	/**
+	 * The unit group, in which the forecasts are requested and cached
+	 */
+	public static final UnitSystem CANONICAL = METRIC;
+	
+	private static final double KM_PER_MILE = 1.609344;
+	
+	// The elements (of a day, an hour or the current conditions), which depend on the unit group
+	private static final Map<String, Quantity> QUANTITIES = Map.ofEntries(
+			Map.entry("temp", Quantity.TEMPERATURE),
+			Map.entry("tempmax", Quantity.TEMPERATURE),
+			Map.entry("tempmin", Quantity.TEMPERATURE),
+			Map.entry("feelslike", Quantity.TEMPERATURE),
+			Map.entry("feelslikemax", Quantity.TEMPERATURE),
+			Map.entry("feelslikemin", Quantity.TEMPERATURE),
+			Map.entry("dew", Quantity.TEMPERATURE),
+			Map.entry("precip", Quantity.PRECIPITATION),
+			Map.entry("snow", Quantity.SNOW),
+			Map.entry("snowdepth", Quantity.SNOW),
+			Map.entry("windspeed", Quantity.WIND),
+			Map.entry("windgust", Quantity.WIND),
+			Map.entry("windspeedmax", Quantity.WIND),
+			Map.entry("windspeedmean", Quantity.WIND),
+			Map.entry("windspeedmin", Quantity.WIND),
+			Map.entry("visibility", Quantity.VISIBILITY),
+			Map.entry("pressure", Quantity.PRESSURE));
+	
+	private final String id;
+	private final String degreeUnit;
+	
+	UnitSystem(String id, String degreeUnit) {
+		this.id = id;
+		this.degreeUnit = degreeUnit;
+	}
+	
+	/**
+	 * Finds the unit system by the name of its unit group
+	 * @param id - "us", "uk", "metric" or "base" (case-insensitive)
+	 * @return - Optional unit system (empty, if there is no such unit group)
+	 */
+	public static Optional<UnitSystem> of(String id) {
+		for (UnitSystem units : values()) {
+			if (units.id.equalsIgnoreCase(id == null ? "" : id.trim())) {
+				return Optional.of(units);
+			}
+		}
+		return Optional.empty();
+	}
+	
+	/**
+	 * @return - The name of the unit group ("unitGroup" parameter of the request)
+	 */
+	public String getId() {
+		return id;
+	}
+	
+	/**
+	 * @return - The temperature unit ("C", "F" or "K")
+	 */
+	public String getDegreeUnit() {
+		return degreeUnit;
+	}
+	
+	/**
+	 * Whether the element has to be converted from the canonical unit group to this one
+	 * @param element - Name of the element (temp, windspeed, etc.)
+	 * @return - true if the element is measured differently in this unit group
+	 */
+	public boolean converts(String element) {
+		Quantity quantity = QUANTITIES.get(element);
+		return quantity != null && (quantity.factor[ordinal()] != 1 || quantity.offset[ordinal()] != 0);
+	}
+	
+	/**
+	 * Converts the value of the element from the canonical unit group to this one
+	 * @param element - Name of the element (temp, windspeed, etc.)
+	 * @param value - The value in the canonical unit group
+	 * @return - The value in this unit group (the same value, if the element does not depend on the unit group)
+	 */
+	public double convert(String element, double value) {
+		Quantity quantity = QUANTITIES.get(element);
+		if (quantity == null || Double.isNaN(value)) {
+			return value;
+		}
+		return value * quantity.factor[ordinal()] + quantity.offset[ordinal()];
+	}
+	
+	/**
+	 * Converts the text value of the element from the canonical unit group to this one (rounded as the server does)
+	 * @param element - Name of the element (temp, windspeed, etc.)
+	 * @param text - The value in the canonical unit group, as it was received
+	 * @return - The value in this unit group (the same text, if the element does not depend on the unit group or is not a number)
+	 */
+	public String convert(String element, String text) {
+		if (text == null || !converts(element)) {
+			return text;
+		}
+		try {
+			double value = convert(element, Double.parseDouble(text));
+			return BigDecimal.valueOf(value)
+					.setScale(QUANTITIES.get(element).scale, RoundingMode.HALF_UP)
+					.stripTrailingZeros()
+					.toPlainString();
+		} catch (NumberFormatException e) {
+			return text;
+		}
+	}
+	
+	/**
+	 * Converts the elements of the JSON object (a day, the current conditions) from the canonical unit group to this one,
+	 * including the nested hours
+	 * @param object - A JSON object, which is changed in place
+	 * @return - The object itself
+	 */
+	public JSONObject convert(JSONObject object) {
+		if (this == CANONICAL) {
+			return object;
+		}
+		for (String key : object.keySet()) {
+			Object value = object.opt(key);
+			if (value instanceof Number && converts(key)) {
+				object.put(key, new BigDecimal(convert(key, value.toString())));
+			} else if (value instanceof JSONArray && key.equals("hours")) {
+				JSONArray hours = (JSONArray) value;
+				for (int i = 0; i < hours.length(); i++) {
+					Optional.ofNullable(hours.optJSONObject(i)).ifPresent(this::convert);
+				}
+			}
+		}
+		return object;
+	}
+	
+	/**
+	 * Physical quantities, which depend on the unit group, with the conversions from the canonical (metric) units
+	 * to the units of US, UK, METRIC, BASE (in the order of the constants)
+	 */
+	private enum Quantity {
+		TEMPERATURE(1, new double[] {9.0 / 5, 1, 1, 1}, new double[] {32, 0, 0, 273.15}),
+		PRECIPITATION(3, new double[] {1 / 25.4, 1, 1, 1}, new double[4]),
+		SNOW(2, new double[] {1 / 2.54, 1, 1, 1}, new double[4]),
+		WIND(1, new double[] {1 / KM_PER_MILE, 1 / KM_PER_MILE, 1, 1 / 3.6}, new double[4]),
+		VISIBILITY(1, new double[] {1 / KM_PER_MILE, 1 / KM_PER_MILE, 1, 1}, new double[4]),
+		PRESSURE(1, new double[] {1, 1, 1, 1}, new double[4]); // Millibars in every unit group
+		
+		private final int scale; // Decimal places of the converted text
+		private final double[] factor;
+		private final double[] offset;
+		
+		Quantity(int scale, double[] factor, double[] offset) {
+			this.scale = scale;
+			this.factor = factor;
+			this.offset = offset;
+		}
+	}
+}
@@ -0,0 +1,31 @@
+package sh.roadmap.tavi.weatherapi.controller;
+
+
+import java.io.IOException;
+
+/**
+ * The Visual Crossing server has responded with an error status (the response body is its error message)
+ */
+public class UpstreamException extends IOException {
+	
+	private static final long serialVersionUID = 1L;
+	
+	private final int statusCode;
+	
+	/**
+	 * @param statusCode - HTTP status of the response
+	 * @param message - The error message, sent by the server
+	 */
+	public UpstreamException(int statusCode, String message) {
+		super("The server has responded with " + statusCode + ": " + message);
+		this.statusCode = statusCode;
+	}
+	
+	/**
+	 * Get the HTTP status of the response
+	 * @return - An int number, representing a status code
+	 */
+	public int getStatusCode() {
+		return statusCode;
+	}
+}
@@ -2,15 +2,39 @@ package sh.roadmap.tavi.weatherapi.controller;
 
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
 import java.net.*;
 import java.net.http.*;
+import java.time.DateTimeException;
 import java.time.Duration;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
 
 import org.json.JSONObject;
 
 import sh.roadmap.tavi.weatherapi.logging.WeatherLogger;
 import sh.roadmap.tavi.weatherapi.service.IWeatherService;
+import sh.roadmap.tavi.weatherapi.service.InvalidationListener;
+import sh.roadmap.tavi.weatherapi.tools.ExecutorFactory;
 import sh.roadmap.tavi.weatherapi.tools.PropertiesReader;
 
 /**
@@ -18,54 +42,280 @@ import sh.roadmap.tavi.weatherapi.tools.PropertiesReader;
  */
 public class WeatherController {
 	
+	// The Visual Crossing host; the timeline endpoint lives under it
+	private static final String HOST = "https://weather.visualcrossing.com";
+	private static final String TIMELINE = HOST + "/VisualCrossingWebServices/rest/services/timeline/";
+	// The statuses, after which the same request may succeed if sent again later
+	private static final Set<Integer> RETRYABLE_STATUSES = Set.of(429, 500, 502, 503, 504);
+	// The sections of the response, which are cached by the days
+	private static final Set<String> DAY_SECTIONS = Set.of("days", "hours");
+	// The cached days are tagged with the elements they have been received with
+	private static final String ELEMENTS_TAG = "cached_elements";
+	private static final String ALL_ELEMENTS = "*";
+	
 	private Optional<WeatherLogger> log = Optional.empty();
 	private IWeatherService service;
 	
 	private String apiKey;
 
 	private String lang = "en";
-	private String units = "metric";
+	private volatile UnitSystem units = UnitSystem.CANONICAL; // The responses are converted to it locally
 	
 	// HTTP status, received from the server
 	// -1 mean "hasn't yet tried to connect" or "could not send a request due to the application failure"
-	private int lastStatusCode = -1;
+	private volatile int lastStatusCode = -1;
 	
 	// Request parameters
 	private Set<String> include = new HashSet<>(Arrays.asList(new String[] {"days"}));
 	private Set<String> elements = new HashSet<>(Arrays.asList(new String[] {"tempmax", "temp", "tempmin", "description", "conditions", "datetime"}));
 
-	// Receiver HTTP (JSON) response facade
-	private WeatherResponse response = new WeatherResponse();
+	// One long-lived HTTP client for all the requests; it keeps its connections (and TLS sessions) alive,
+	// so only the first request to the server pays for the handshake
+	private HttpClient client;
+	// Runs the client's tasks and all the blocking work (cache look-ups, body decoding); virtual threads by default
+	private Executor executor;
+	private ExecutorService ownExecutor; // Created by the controller itself (so it is shut down on dispose)
+	private Duration connectTimeout = Duration.ofSeconds(10);
+	private Duration requestTimeout = Duration.ofSeconds(10);
+	
+	// The last received HTTP (JSON) response snapshot; a newer snapshot is never replaced by an older one
+	private final AtomicReference<WeatherResponse> response = new AtomicReference<>(new WeatherResponse());
+
+	// How many requests were served from the database service, and how many were not
+	private final AtomicLong cacheHits = new AtomicLong();
+	private final AtomicLong cacheMisses = new AtomicLong();
+	
+	// Retries of the failed requests (exponential back-off with jitter), and the breaker for the failing server
+	private int retryAttempts = 2;
+	private Duration retryDelay = Duration.ofMillis(500); // The base delay, doubled with each attempt
+	private Duration retryMaxDelay = Duration.ofSeconds(10);
+	private CircuitBreaker breaker;
+	private int breakerThreshold = 5;
+	private Duration breakerOpen = Duration.ofSeconds(30);
+	
+	// Cached responses older than this are served as they are, but refreshed in the background (0 - never)
+	private Duration cacheSoftTtl = Duration.ZERO;
+	private final Set<RequestKey> refreshing = ConcurrentHashMap.newKeySet();
+	
+	// Requests, which are being fetched at the moment; concurrent callers with the same key share one fetch
+	private final Map<RequestKey, CompletableFuture<WeatherResponse>> inFlight = new ConcurrentHashMap<>();
+	private final Map<RequestKey, CompletableFuture<WeatherResponse>> fetching = new ConcurrentHashMap<>(); // Only the fetches from the server
+	// How many requests a bulk fetch may send to the server at the same time
+	private int maxConcurrentRequests = 8;
+	
+	// The last used responses, kept in memory in front of the database service
+	private NearCache near;
+	private int nearCacheSize = 256;
+	private Duration nearCacheTtl = Duration.ofMinutes(5);
+	
+	// How often every request has been sent (over the runs), to warm the cache up at start-up
+	private HotKeys hotKeys;
+	private int warmUpKeys = 10; // The most requested keys to warm up
+	private int warmUpBudget = 3; // How many of them may be fetched from the server
+	private Duration warmUpTimeout = Duration.ofSeconds(30);
+	
+	// Time zones of the locations (learned from the responses), to tell what "today" is there
+	private final Map<String, ZoneId> zones = new ConcurrentHashMap<>();
 
-	// To prevent from DDoS
-	private long lastRequestMillis;
+	// To prevent from DDoS (and from exceeding the quota): a token bucket per API key
+	private RateLimiter limiter;
+	private double rateLimit = 1; // Requests per second
+	private int rateBurst = 5;
+	private Duration rateWait = Duration.ofSeconds(10); // The longest time a request may wait in the queue
 	
 	// Controller status
-	private STATUS status = STATUS.READY;
+	private volatile STATUS status = STATUS.READY;
 	
 	/**
 	 * Creates a REST controller, working on fetching the weather data from the Visual Crossing service
 	 * @param props - a {@link PropertiesReader} instance to read the configuration. 
-	 * ".properties" file must contain the "api-key" (necessary) and (unnecessary) "include" and "elements" properties of the requests (visit Visual Crossing to get known of them, or use the default ones). The last ones are sequences of key words, divided by a comma 
+	 * ".properties" file must contain the "api-key" (necessary) and (unnecessary) "include" and "elements" properties of the requests (visit Visual Crossing to get known of them, or use the default ones). The last ones are sequences of key words, divided by a comma. <br>
+	 * The HTTP client may be tuned with (unnecessary) "http-connect-timeout", "http-request-timeout" and "http-keep-alive" properties (in seconds),
+	 * the bulk requests - with the "max-concurrent-requests" property. <br>
+	 * The requests are limited with the "rate-limit" (requests per second), "rate-burst" (requests at once) and "rate-wait"
+	 * (the longest wait in the queue, in seconds) properties. <br>
+	 * The (unnecessary) "cache-soft-ttl" property (in seconds) enables the background refreshes of the old cached responses. <br>
+	 * The failed requests are retried "retry-attempts" times (with the "retry-delay" base delay, in milliseconds);
+	 * after "breaker-threshold" failures in a row the requests fail fast for "breaker-open" seconds. <br>
+	 * The last used responses are kept in memory: "near-cache-size" of them, for "near-cache-ttl" seconds. <br>
+	 * The requests are counted in the "hot-keys-file" (data/hot-keys.json by default); "warm-up-keys" of the most requested ones
+	 * are warmed up at start-up, fetching no more than "warm-up-budget" of them from the server (see {@link #warmUpCache()})
 	 */
 	public WeatherController(PropertiesReader props) {
+		this(props, null);
+	}
+	
+	/**
+	 * Same as {@link #WeatherController(PropertiesReader)}, but the HTTP client and the blocking work run on the specified executor
+	 * @param props - a {@link PropertiesReader} instance to read the configuration
+	 * @param executor - an Executor for the requests (null to use a virtual thread per task)
+	 */
+	public WeatherController(PropertiesReader props, Executor executor) {
 		props.get("api-key").ifPresent(val -> apiKey = val);
 		props.get("include").ifPresent(val -> include = new HashSet<>(Arrays.asList(val.split(","))));
 		props.get("elements").ifPresent(val -> elements = new HashSet<>(Arrays.asList(val.split(","))));
+		props.get("max-concurrent-requests").ifPresent(val -> setMaxConcurrentRequests(parseCount(val, maxConcurrentRequests)));
+		props.get("rate-limit").ifPresent(val -> {
+			try {
+				rateLimit = Double.parseDouble(val.trim());
+			} catch (NumberFormatException e) {
+				log.ifPresent(log -> log.warning("Not a number in the properties: " + val, e));
+			}
+		});
+		props.get("cache-soft-ttl").ifPresent(val -> cacheSoftTtl = parseSeconds(val, cacheSoftTtl));
+		props.get("retry-attempts").ifPresent(val -> {
+			try {
+				retryAttempts = Math.max(0, Integer.parseInt(val.trim()));
+			} catch (NumberFormatException e) {
+				log.ifPresent(log -> log.warning("Not a number in the properties: " + val, e));
+			}
+		});
+		props.get("retry-delay").ifPresent(val -> retryDelay = Duration.ofMillis(parseCount(val, (int) retryDelay.toMillis())));
+		props.get("breaker-threshold").ifPresent(val -> breakerThreshold = parseCount(val, breakerThreshold));
+		props.get("breaker-open").ifPresent(val -> breakerOpen = parseSeconds(val, breakerOpen));
+		props.get("rate-burst").ifPresent(val -> rateBurst = parseCount(val, rateBurst));
+		props.get("rate-wait").ifPresent(val -> rateWait = parseSeconds(val, rateWait));
+		props.get("near-cache-size").ifPresent(val -> nearCacheSize = parseLimit(val, nearCacheSize));
+		props.get("near-cache-ttl").ifPresent(val -> nearCacheTtl = parseSeconds(val, nearCacheTtl));
+		props.get("warm-up-keys").ifPresent(val -> warmUpKeys = parseLimit(val, warmUpKeys));
+		props.get("warm-up-budget").ifPresent(val -> warmUpBudget = parseLimit(val, warmUpBudget));
+		props.get("warm-up-timeout").ifPresent(val -> warmUpTimeout = parseSeconds(val, warmUpTimeout));
+		hotKeys = new HotKeys(Paths.get(props.get("hot-keys-file").orElse("data/hot-keys.json")));
+		props.get("http-connect-timeout").ifPresent(val -> connectTimeout = parseSeconds(val, connectTimeout));
+		props.get("http-request-timeout").ifPresent(val -> requestTimeout = parseSeconds(val, requestTimeout));
+		// The keep-alive timeout of the idle pooled connections is a JDK-wide setting, read once by the client implementation
+		props.get("http-keep-alive").ifPresent(val -> {
+			if (System.getProperty("jdk.httpclient.keepalive.timeout") == null) {
+				System.setProperty("jdk.httpclient.keepalive.timeout", String.valueOf(parseSeconds(val, Duration.ofMinutes(20)).toSeconds()));
+			}
+		});
 		if (props.getStatus() != null) {
 			log.ifPresent(log -> log.severe("Could not read the properties file", props.getStatus()));
 			status = STATUS.FAILED_TO_INITIALIZE;
 		}
+		setExecutor(executor);
+		limiter = RateLimiter.forKey(apiKey, rateLimit > 0 ? rateLimit : 1, rateBurst);
+		breaker = new CircuitBreaker(breakerThreshold, breakerOpen);
+		near = new NearCache(nearCacheSize, nearCacheTtl);
+	}
+	
+	/**
+	 * Replaces the executor of the requests (the HTTP client is re-created, so its open connections are dropped).
+	 * Preferably called once, before sending any request.
+	 * @param executor - an Executor for the HTTP client and the blocking work (null to use a virtual thread per task)
+	 * @return - Itself, for chaining
+	 */
+	public WeatherController setExecutor(Executor executor) {
+		if (ownExecutor != null) {
+			ownExecutor.shutdown();
+			ownExecutor = null;
+		}
+		if (executor == null) {
+			executor = ownExecutor = ExecutorFactory.newVirtualThreadExecutor();
+		}
+		this.executor = executor;
+		client = createClient();
+		return this;
+	}
+	
+	/**
+	 * Opens (and keeps alive) a connection to the Visual Crossing server in the background,
+	 * so that the first actual request does not pay for the TCP and TLS handshakes.
+	 * Meant to be called once at start-up.
+	 */
+	public void warmUp() {
+		HttpRequest request = HttpRequest.newBuilder()
+				.uri(URI.create(HOST + "/"))
+				.timeout(requestTimeout)
+				.method("HEAD", HttpRequest.BodyPublishers.noBody())
+				.build();
+		client.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+		.whenComplete((httpResponse, e) -> {
+			if (e != null) {
+				log.ifPresent(log -> log.warning("Could not warm up the connection to " + HOST, e instanceof Exception ? (Exception) e : null));
+			} else {
+				log.ifPresent(log -> log.info("Connection to " + HOST + " is warmed up (" + httpResponse.version() + ")"));
+			}
+		});
+	}
+	
+	/**
+	 * Warms the cache up with the most requested keys (counted over the runs): the ones, which are still cached
+	 * by the database service, are loaded into memory; the rest are fetched from the server, but no more
+	 * than "warm-up-budget" of them (the most requested first). <br>
+	 * Blocks until done, but no longer than "warm-up-timeout". Meant to be called once at start-up, after the database service is set
+	 * (see {@link #setService(IWeatherService)}); the warmed up responses do not replace the last response.
+	 * @return - How many of the keys are in memory
+	 */
+	public int warmUpCache() {
+		if (service == null || warmUpKeys == 0) {
+			return 0;
+		}
+		List<RequestKey> keys = hotKeys.top(warmUpKeys).stream().map(this::resolved).distinct().collect(Collectors.toList());
+		if (keys.isEmpty()) {
+			return 0;
+		}
+		
+		// One read for all the keys; not counted as the cache hits or misses
+		Map<String, byte[]> values = Collections.emptyMap();
+		try {
+			values = service.getMany(keys.stream().map(RequestKey::toCacheKey).collect(Collectors.toSet()));
+		} catch (RuntimeException e) {
+			log.ifPresent(log -> log.warning("Could not look up the cached responses to warm up", e));
+		}
+		List<RequestKey> expired = new ArrayList<>();
+		for (RequestKey key : keys) {
+			Optional<Forecast> cached = decoded(key.toCacheKey(), values.get(key.toCacheKey()));
+			if (cached.isPresent()) {
+				near.put(key.toCacheKey(), cached.get());
+			} else {
+				expired.add(key);
+			}
+		}
+		
+		// The most requested of the expired ones are fetched anew
+		List<RequestKey> fetched = expired.subList(0, Math.min(warmUpBudget, expired.size()));
+		CompletableFuture<?>[] fetches = fetched.stream()
+				.map(key -> coalesced(key, () -> fetchMissing(key, new Writes(true, false))))
+				.toArray(CompletableFuture<?>[]::new);
+		try {
+			CompletableFuture.allOf(fetches).get(warmUpTimeout.toMillis(), TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			log.ifPresent(log -> log.info("Cache warm-up is taking too long; the rest is fetched in the background"));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			// Never completed exceptionally (the failed responses are returned)
+		}
+		int loaded = keys.size() - expired.size();
+		log.ifPresent(log -> log.info("Cache warm-up: " + loaded + " of " + keys.size() + " hot keys loaded from the cache, "
+				+ fetched.size() + " fetched (" + (expired.size() - fetched.size()) + " over the budget), " + near.size() + " in memory"));
+		return near.size();
 	}
 	
 	/**
 	 * (Unnecessary) Sets the database service facade, which is then used for caching responses and other data.
+	 * The responses, changed in the database by other instances of the application, are dropped from memory.
 	 * @param service - an instance of WeatherService, a Redis service facade
 	 */
 	public void setService(IWeatherService service) {
 		this.service = service;
-		response.setService(service);
-		service.getString("last_location").ifPresent(loc -> service.getObject(loc).ifPresent(obj -> response.updated(obj)));
+		service.setInvalidationListener(new InvalidationListener() {
+			@Override
+			public void invalidated(Collection<String> keys) {
+				long evicted = keys.stream().filter(near::evict).count();
+				if (evicted > 0) {
+					log.ifPresent(log -> log.info("Changed by another instance, dropped from memory: " + evicted + " responses"));
+				}
+			}
+			
+			@Override
+			public void invalidatedAll() {
+				near.clear();
+				log.ifPresent(log -> log.info("Could have missed the changes of other instances, dropped all the responses from memory"));
+			}
+		});
+		service.getString("last_request").ifPresent(key -> service.getForecast(key).ifPresent(forecast -> publish(restored(forecast))));
 	}
 
 	/**
@@ -92,17 +342,28 @@ public class WeatherController {
 	 * @return - "us", "uk", "metric", "base"
 	 */
 	public String getUnits() {
+		return units.getId();
+	}
+	
+	/**
+	 * Get the currently used unit system
+	 * @return - The unit system, to which the responses are converted
+	 */
+	public UnitSystem getUnitSystem() {
 		return units;
 	}
 	
 	/**
-	 * Directly changes the "units" field
+	 * Directly changes the "units" field. <br>
+	 * The forecasts are always fetched (and cached) in the canonical unit group and converted locally,
+	 * so switching the unit system does not require to fetch anything again
+	 * (see {@link WeatherResponse#withUnits(UnitSystem)} to convert a received response).
 	 * @param unitSystem - a unit system to use
 	 */
-	private void setUnits(String unitSystem) {
+	public void setUnits(UnitSystem unitSystem) {
 		units = unitSystem;
 		if (service != null) {
-			service.putString("units", units);
+			service.putString("units", units.getId());
 		}
 	}
 	
@@ -111,7 +372,7 @@ public class WeatherController {
 	 * @return - Itself, for chaining
 	 */
 	public WeatherController setMetric() {
-		setUnits("metric");
+		setUnits(UnitSystem.METRIC);
 		return this;
 	}
 	
@@ -120,7 +381,7 @@ public class WeatherController {
 	 * @return - Itself, for chaining
 	 */
 	public WeatherController setUsUnits() {
-		setUnits("us");
+		setUnits(UnitSystem.US);
 		return this;
 	}
 	
@@ -129,7 +390,7 @@ public class WeatherController {
 	 * @return - Itself, for chaining
 	 */
 	public WeatherController setUkUnits() {
-		setUnits("uk");
+		setUnits(UnitSystem.UK);
 		return this;
 	}
 	
@@ -138,44 +399,735 @@ public class WeatherController {
 	 * @return - Itself, for chaining
 	 */
 	public WeatherController setBaseUnits() {
-		setUnits("base");
+		setUnits(UnitSystem.BASE);
 		return this;
 	}
 	
 	/**
 	 * The main method to work with requests. Requests the weather data for the specified location and date.
+	 * Blocks until the response is received; see {@link #sendRequestAsync(String, String)} for the non-blocking version.
 	 * @param location - The location you want to get the weather data for
 	 * @param forDate - The date you want to get the weather data for (may be two dates, separated with a slash, also the latter/the only one may be "next{number}days", where "{number}" is a string value of an integer)
 	 * @return - The response facade to work with further
 	 */
 	public WeatherResponse sendRequest(String location, String forDate) {
-		// Replace the white spaces
-		location = location.replaceAll("\\s", "_");
+		return sendRequestAsync(location, forDate).join();
+	}
+	
+	/**
+	 * Requests the weather data for the specified location and date without blocking the caller.
+	 * The cache look-up (if the database service is set) and the response decoding run on the controller's executor. <br>
+	 * If the same request (same location, dates, units, language and elements) is already being fetched,
+	 * the caller receives the result of that fetch instead of sending another one.
+	 * @param location - The location you want to get the weather data for
+	 * @param forDate - The date you want to get the weather data for (same format as in {@link #sendRequest(String, String)})
+	 * @return - A future, completed with the response facade (never completed exceptionally; check the response status instead)
+	 */
+	public CompletableFuture<WeatherResponse> sendRequestAsync(String location, String forDate) {
+		RequestKey key = resolved(recorded(new RequestKey(location, forDate, lang, include, elements)));
+		UnitSystem units = this.units;
 		
-		// If we request the info on the location, which is not the last location we got the data for, AND
-		// we have received this info earlier (it's in the database), we fetch the request from the WeatherService
-		// If we send a request again (the last location is the current location), we update
-		if (service != null && !service.getString("last_location").orElse("???").equals(location)
-				&& service.getObject(location).isPresent()) {
-			service.getObject(location).ifPresent(lastResponse -> response.updated(lastResponse));
-			service.putString("last_location", location);
-			return response;
+		return coalesced(key, () -> CompletableFuture.supplyAsync(() -> fromCache(key), executor)
+				.thenCompose(cached -> cached.isPresent()
+						? CompletableFuture.completedFuture(cached.get())
+						: fetchMissing(key)))
+				.exceptionally(t -> {
+					// Not a failure of the server (e.g. the database has failed, or a cached value could not be decoded)
+					Throwable e = unwrap(t);
+					log.ifPresent(log -> log.warning("Could not receive the data on " + location, e instanceof Exception ? (Exception) e : null));
+					return failed(e instanceof Exception ? (Exception) e : new RuntimeException(e));
+				})
+				.thenApply(result -> result.withUnits(units));
+	}
+	
+	/**
+	 * Requests the weather data for several locations at once (for the same date). <br>
+	 * The locations, which are cached by the database service, are served from the cache; the rest are fetched
+	 * from the server concurrently, but no more than "max-concurrent-requests" at a time (and within the rate limit).
+	 * @param locations - The locations you want to get the weather data for
+	 * @param forDate - The date you want to get the weather data for (same format as in {@link #sendRequest(String, String)})
+	 * @return - The responses, mapped by the locations (in the order of the argument); if the data on some location
+	 * could not be received, its response has the FAILURE status (see {@link WeatherResponse#getException()})
+	 */
+	public Map<String, WeatherResponse> sendRequests(Collection<String> locations, String forDate) {
+		Map<String, RequestKey> keys = new LinkedHashMap<>();
+		for (String location : locations) {
+			keys.put(location, resolved(recorded(new RequestKey(location, forDate, lang, include, elements))));
 		}
 		
-		// 10 seconds should pass between request !
-		if (lastRequestMillis != 0 && (System.currentTimeMillis() - lastRequestMillis) < 10000) {
-			log.ifPresent(log -> log.info("You can't request the weather data more often than each 10 seconds."));
-			lastStatusCode = -1;
+		// Split the batch into the cache hits and misses
+		Map<String, WeatherResponse> results = new ConcurrentHashMap<>();
+		Queue<String> misses = new ConcurrentLinkedQueue<>();
+		Map<RequestKey, WeatherResponse> cached = lookUpMany(keys.values()); // One read for the whole batch
+		for (Map.Entry<String, RequestKey> entry : keys.entrySet()) {
+			WeatherResponse hit = cached.get(entry.getValue());
+			if (hit != null) {
+				results.put(entry.getKey(), hit);
+			} else {
+				misses.add(entry.getKey());
+			}
+		}
+		log.ifPresent(log -> log.info("Bulk request: " + results.size() + " cached, " + misses.size() + " to fetch"));
+		
+		// Fetch the misses; each "worker" takes the next location from the queue, when it is done with the previous one
+		// The fetched responses (and their days) are cached with one write for the whole batch;
+		// none of them becomes the last response (it would be the one, which happened to be received last)
+		int workers = Math.min(maxConcurrentRequests, misses.size());
+		Writes writes = new Writes(true, true);
+		CompletableFuture<?>[] chains = new CompletableFuture<?>[workers];
+		for (int i = 0; i < workers; i++) {
+			chains[i] = fetchNext(misses, keys, results, writes);
+		}
+		CompletableFuture.allOf(chains).join();
+		try {
+			writes.flush();
+		} catch (RuntimeException e) {
+			log.ifPresent(log -> log.warning("Could not cache the fetched responses", e));
+		}
+		
+		UnitSystem units = this.units;
+		Map<String, WeatherResponse> ordered = new LinkedHashMap<>();
+		keys.keySet().forEach(location -> ordered.put(location, Optional.ofNullable(results.get(location))
+				.orElseGet(() -> WeatherResponse.failed(new IllegalStateException("No response on " + location), log.orElse(null)))
+				.withUnits(units)));
+		return ordered;
+	}
+	
+	/**
+	 * Sets how many requests a bulk fetch may send to the server at the same time
+	 * @param maxConcurrentRequests - A positive number
+	 * @return - Itself, for chaining
+	 */
+	public WeatherController setMaxConcurrentRequests(int maxConcurrentRequests) {
+		if (maxConcurrentRequests > 0) {
+			this.maxConcurrentRequests = maxConcurrentRequests;
+		}
+		return this;
+	}
+	
+	/**
+	 * Sub-task of sendRequests(). Fetches the locations from the queue one by one, until it is empty
+	 * @param misses - The locations left to fetch
+	 * @param keys - The request keys of the locations
+	 * @param results - Where to put the responses
+	 * @param writes - Collects the responses to cache
+	 * @return - A future, completed when the queue is empty
+	 */
+	private CompletableFuture<Void> fetchNext(Queue<String> misses, Map<String, RequestKey> keys, Map<String, WeatherResponse> results, Writes writes) {
+		String location = misses.poll();
+		if (location == null) {
+			return CompletableFuture.completedFuture(null);
+		}
+		RequestKey key = keys.get(location);
+		return coalesced(key, () -> fetchMissing(key, writes))
+				.exceptionally(t -> {
+					// Only this location has failed: the worker goes on with the queue
+					Throwable e = unwrap(t);
+					log.ifPresent(log -> log.warning("Could not receive the data on " + location, e instanceof Exception ? (Exception) e : null));
+					return WeatherResponse.failed(e instanceof Exception ? (Exception) e : new RuntimeException(e), log.orElse(null));
+				})
+				.thenCompose(result -> {
+					results.put(location, result);
+					return fetchNext(misses, keys, results, writes);
+				});
+	}
+	
+	/**
+	 * Counts the request (to warm it up on the next start, if it is one of the most requested)
+	 * @param key - All the parameters of the request (before the dates are resolved)
+	 * @return - The key itself
+	 */
+	private RequestKey recorded(RequestKey key) {
+		if (hotKeys.record(key)) {
+			executor.execute(this::saveHotKeys);
+		}
+		return key;
+	}
+	
+	/**
+	 * Saves the counts of the requests
+	 */
+	private void saveHotKeys() {
+		try {
+			hotKeys.save();
+		} catch (IOException e) {
+			log.ifPresent(log -> log.warning("Could not save the counts of the requests", e));
+		}
+	}
+	
+	/**
+	 * Makes the concurrent callers with the same request key share one load of the response
+	 * @param key - All the parameters of the request
+	 * @param loader - Loads the response (if no load with the same key is in flight)
+	 * @return - A future, completed with the response facade
+	 */
+	private CompletableFuture<WeatherResponse> coalesced(RequestKey key, Supplier<CompletableFuture<WeatherResponse>> loader) {
+		CompletableFuture<WeatherResponse> promise = new CompletableFuture<>();
+		CompletableFuture<WeatherResponse> existing = inFlight.putIfAbsent(key, promise);
+		if (existing != null) {
+			log.ifPresent(log -> log.info("Joined the request, which is already in flight: " + key));
+			return existing.copy(); // A copy, so that one caller can't complete or cancel the future of the others
+		}
+		
+		CompletableFuture<WeatherResponse> load;
+		try {
+			load = loader.get();
+		} catch (RuntimeException e) {
+			load = CompletableFuture.failedFuture(e); // Thrown before the load has started: the key must not stay in flight
+		}
+		load.whenComplete((result, e) -> {
+			inFlight.remove(key, promise);
+			if (e != null) {
+				promise.completeExceptionally(e);
+			} else {
+				promise.complete(result);
+			}
+		});
+		return promise.copy();
+	}
+	
+	/**
+	 * If we have received the response to exactly the same request earlier (it's in the database),
+	 * we fetch it from the WeatherService and make it the last response
+	 * @param key - All the parameters of the request
+	 * @return - Optional response, restored from the database
+	 */
+	private Optional<WeatherResponse> fromCache(RequestKey key) {
+		Optional<WeatherResponse> cached = lookUp(key);
+		cached.ifPresent(result -> {
+			service.putString("last_request", key.toCacheKey());
+			publish(result);
+		});
+		return cached;
+	}
+	
+	/**
+	 * Looks the response up in the database service (and counts the cache hits and misses)
+	 * @param key - All the parameters of the request
+	 * @return - Optional response, restored from the database
+	 */
+	private Optional<WeatherResponse> lookUp(RequestKey key) {
+		if (service == null || key.getLocation() == null) {
+			return Optional.empty();
+		}
+		Optional<Forecast> cached = near.get(key.toCacheKey());
+		if (cached.isEmpty()) {
+			try {
+				cached = service.getForecast(key.toCacheKey());
+				cached.ifPresent(forecast -> near.put(key.toCacheKey(), forecast));
+			} catch (RuntimeException e) {
+				log.ifPresent(log -> log.warning("Could not look up the cached response: " + key, e));
+			}
+		}
+		return counted(key, cached);
+	}
+	
+	/**
+	 * Looks several responses up in the database service at once (and counts the cache hits and misses)
+	 * @param keys - The parameters of the requests
+	 * @return - The responses, restored from the database, by their keys (the misses are left out)
+	 */
+	private Map<RequestKey, WeatherResponse> lookUpMany(Collection<RequestKey> keys) {
+		Map<RequestKey, WeatherResponse> result = new HashMap<>();
+		if (service == null) {
+			return result;
+		}
+		// The responses in memory are not read from the database
+		Map<RequestKey, Forecast> inMemory = new HashMap<>();
+		keys.stream().filter(key -> key.getLocation() != null)
+				.forEach(key -> near.get(key.toCacheKey()).ifPresent(forecast -> inMemory.put(key, forecast)));
+		Map<String, byte[]> values = Collections.emptyMap();
+		try {
+			Set<String> read = keys.stream().filter(key -> key.getLocation() != null && !inMemory.containsKey(key))
+					.map(RequestKey::toCacheKey).collect(Collectors.toSet());
+			if (!read.isEmpty()) {
+				values = service.getMany(read);
+			}
+		} catch (RuntimeException e) {
+			log.ifPresent(log -> log.warning("Could not look up the cached responses", e));
+		}
+		for (RequestKey key : keys) {
+			if (key.getLocation() == null) {
+				continue;
+			}
+			Optional<Forecast> cached = Optional.ofNullable(inMemory.get(key));
+			if (cached.isEmpty()) {
+				cached = decoded(key.toCacheKey(), values.get(key.toCacheKey()));
+				cached.ifPresent(forecast -> near.put(key.toCacheKey(), forecast));
+			}
+			counted(key, cached).ifPresent(response -> result.put(key, response));
+		}
+		return result;
+	}
+	
+	/**
+	 * Counts (and logs) the cache hit or miss; starts the refresh of a stale hit
+	 * @param key - All the parameters of the request
+	 * @param cached - The cached response body (empty on a cache miss)
+	 * @return - Optional response, restored from the database
+	 */
+	private Optional<WeatherResponse> counted(RequestKey key, Optional<Forecast> cached) {
+		WeatherResponse result = null;
+		if (cached.isPresent()) {
+			try {
+				// The values are decoded lazily: a corrupted one would fail only when read (on every read, until it expires)
+				result = restored(cached.get().decodeAll());
+				learnZone(key, result);
+			} catch (UncheckedIOException e) {
+				log.ifPresent(log -> log.warning("Could not decode the cached response, fetching it again: " + key.toCacheKey(), e));
+				evict(List.of(key.toCacheKey()));
+				result = null;
+			}
+		}
+		if (result != null) {
+			long hits = cacheHits.incrementAndGet();
+			log.ifPresent(log -> log.info("Cache hit: " + key.toCacheKey() + " (hits: " + hits + ", misses: " + cacheMisses.get() + ")"));
+			if (isStale(result)) {
+				refreshInBackground(key);
+			}
+			return Optional.of(result);
+		}
+		long misses = cacheMisses.incrementAndGet();
+		log.ifPresent(log -> log.info("Cache miss: " + key.toCacheKey() + " (hits: " + cacheHits.get() + ", misses: " + misses + ")"));
+		return Optional.empty();
+	}
+	
+	/**
+	 * Decodes a cached response body, read in bulk
+	 * @param cacheKey - The key of the value
+	 * @param value - The value (null, if it is absent)
+	 * @return - Optional Forecast (empty, if absent or could not be decoded)
+	 */
+	private Optional<Forecast> decoded(String cacheKey, byte[] value) {
+		if (value == null) {
+			return Optional.empty();
+		}
+		try {
+			return Optional.of(ForecastCodec.decode(value));
+		} catch (IOException e) {
+			log.ifPresent(log -> log.warning("Could not decode the cached value: " + cacheKey, e));
+			return Optional.empty();
+		}
+	}
+	
+	/**
+	 * Sets the age, after which a cached response is stale: it is still served at once (until the database service expires it),
+	 * but a fresh one is fetched from the server in the background
+	 * @param softTtl - The soft time-to-live of the cached responses (zero to never refresh them in the background)
+	 * @return - Itself, for chaining
+	 */
+	public WeatherController setCacheSoftTtl(Duration softTtl) {
+		cacheSoftTtl = softTtl;
+		return this;
+	}
+	
+	/**
+	 * Whether the cached response should be refreshed in the background
+	 * @param cached - The response, restored from the database
+	 * @return - true if it is older than the soft time-to-live (or its age is unknown)
+	 */
+	private boolean isStale(WeatherResponse cached) {
+		if (cacheSoftTtl.isZero() || cacheSoftTtl.isNegative()) {
+			return false;
+		}
+		return System.currentTimeMillis() - cached.getCreatedDate() > cacheSoftTtl.toMillis();
+	}
+	
+	/**
+	 * Fetches the response from the server and replaces the cached one, without making anybody wait for it.
+	 * Only one refresh of the same request is performed at a time; if the same request is already being fetched,
+	 * the refresh is that fetch. The refreshed response does not become the last one (neither published,
+	 * nor cached as the "last_request"), as the user has not asked for it.
+	 * @param key - All the parameters of the request
+	 */
+	private void refreshInBackground(RequestKey key) {
+		if (!refreshing.add(key)) {
+			return;
+		}
+		log.ifPresent(log -> log.info("Serving a stale response, refreshing in the background: " + key.toCacheKey()));
+		try {
+			// Not registered in flight itself: the callers, served from the cache meanwhile, must not wait for the refresh
+			CompletableFuture<WeatherResponse> fetched = fetching.get(key);
+			(fetched != null ? fetched : fetch(key, new Writes(true, false))).whenComplete((result, e) -> refreshing.remove(key));
+		} catch (RuntimeException e) {
+			refreshing.remove(key);
+			log.ifPresent(log -> log.warning("Could not start the background refresh: " + key.toCacheKey(), e));
+		}
+	}
+	
+	/**
+	 * Get how many requests were served from the database service
+	 * @return - The number of the cache hits since the controller was created
+	 */
+	public long getCacheHits() {
+		return cacheHits.get();
+	}
+	
+	/**
+	 * Get how many requests were not found in the database service (and had to be fetched from the server)
+	 * @return - The number of the cache misses since the controller was created
+	 */
+	public long getCacheMisses() {
+		return cacheMisses.get();
+	}
+	
+	/**
+	 * Resolves the relative dates of the request ("today", "next7days", etc.) to the dates at the location,
+	 * so that the cached responses and days are never served for other dates. <br>
+	 * Until the time zone of the location is known (learned from its first response), the relative dates
+	 * are left to the server, which resolves them at the location
+	 * @param key - All the parameters of the request
+	 * @return - The key with the explicit dates (or the key itself, if its dates can't be resolved)
+	 */
+	private RequestKey resolved(RequestKey key) {
+		ZoneId zone = key.getLocation() == null ? null : zones.get(key.getLocation());
+		if (zone == null) {
+			return key;
+		}
+		LocalDate today = LocalDate.now(zone);
+		return DateRange.resolve(key.getForDate(), today)
+				.map(range -> key.withForDate(range.toString()))
+				.orElse(key);
+	}
+	
+	/**
+	 * Whether the response to the request can be cached (and assembled) by the days
+	 * @param key - All the parameters of the request (with the resolved dates)
+	 * @return - Optional range of the days (empty, if the request is cached only as a whole)
+	 */
+	private Optional<DateRange> dayRange(RequestKey key) {
+		// Only the days (and their hours) are split; the current conditions, alerts, etc. are not bound to a day
+		Set<String> include = key.getInclude();
+		boolean daysOnly = include.contains("days") && DAY_SECTIONS.containsAll(include);
+		// The days are told apart by their dates
+		boolean dated = key.getElements().isEmpty() || key.getElements().contains("datetime");
+		if (service == null || key.getLocation() == null || !daysOnly || !dated) {
+			return Optional.empty();
+		}
+		return DateRange.parse(key.getForDate()).filter(range -> range.length() <= DateRange.MAX_DAYS);
+	}
+	
+	/**
+	 * Fetches the response, which is not cached as a whole. If it can be cached by the days,
+	 * only the days, which are not cached, are fetched (see {@link #fetchDays(RequestKey, DateRange, Writes)})
+	 * @param key - All the parameters of the request
+	 * @return - A future, completed with the response facade
+	 */
+	private CompletableFuture<WeatherResponse> fetchMissing(RequestKey key) {
+		return fetchMissing(key, new Writes(false, false));
+	}
+	
+	/**
+	 * Same as {@link #fetchMissing(RequestKey)}
+	 * @param key - All the parameters of the request
+	 * @param writes - How the response is cached
+	 * @return - A future, completed with the response facade
+	 */
+	private CompletableFuture<WeatherResponse> fetchMissing(RequestKey key, Writes writes) {
+		Optional<DateRange> range = dayRange(key);
+		CompletableFuture<WeatherResponse> result = range.isPresent() ? fetchDays(key, range.get(), writes) : fetch(key, writes);
+		fetching.put(key, result);
+		result.whenComplete((response, e) -> fetching.remove(key, result));
+		return result;
+	}
+	
+	/**
+	 * Assembles the response from the cached days; the days, which are not cached, are fetched
+	 * with one request for the range from the first to the last of them. <br>
+	 * A cached day is tagged with its elements, so it answers any request for some of them;
+	 * if the cached days lack only some elements, only those elements are fetched (and merged into the cached days)
+	 * @param key - All the parameters of the request
+	 * @param range - The days of the request
+	 * @param writes - How the response is cached
+	 * @return - A future, completed with the response facade
+	 */
+	private CompletableFuture<WeatherResponse> fetchDays(RequestKey key, DateRange range, Writes writes) {
+		Set<String> wanted = key.getElements();
+		Map<LocalDate, Forecast> days = new HashMap<>();
+		List<LocalDate> missing = new ArrayList<>();
+		Set<String> missingElements = new TreeSet<>();
+		boolean wholeDaysMissing = false;
+		Map<LocalDate, Optional<Forecast>> read = cachedDays(key, range.days());
+		for (Map.Entry<LocalDate, Optional<Forecast>> cached : read.entrySet()) {
+			Optional<Set<String>> tag = cached.getValue().flatMap(WeatherController::elementsOf);
+			if (tag.isPresent() && covers(tag.get(), wanted)) {
+				days.put(cached.getKey(), projected(cached.getValue().get(), key));
+				continue;
+			}
+			missing.add(cached.getKey());
+			if (tag.isPresent() && !tag.get().isEmpty() && !wanted.isEmpty()) {
+				wanted.stream().filter(element -> !tag.get().contains(element)).forEach(missingElements::add);
+			} else {
+				wholeDaysMissing = true;
+			}
+		}
+		
+		if (missing.isEmpty()) {
+			log.ifPresent(log -> log.info("All the " + range.length() + " days are cached: " + key.toCacheKey()));
+			WeatherResponse result = assembled(key, range, days);
+			if (isStale(result)) {
+				refreshInBackground(key);
+			}
+			writes.response(key, result);
+			if (!writes.quiet) {
+				publish(result);
+			}
+			return CompletableFuture.completedFuture(result);
+		}
+		
+		Collections.sort(missing);
+		DateRange span = new DateRange(missing.get(0), missing.get(missing.size() - 1));
+		RequestKey spanKey = key.withForDate(span.toString());
+		if (!wholeDaysMissing) {
+			// The days are cached, but without some of the elements: fetch only them
+			missingElements.add("datetime");
+			spanKey = spanKey.withElements(missingElements);
+		}
+		RequestKey fetchKey = spanKey;
+		log.ifPresent(log -> log.info(days.size() + " of " + range.length() + " days are cached, fetching " + fetchKey + ": " + key.toCacheKey()));
+		return fetch(fetchKey, writes, () -> partial(key, range, days), fetched -> {
+			cacheDays(fetchKey, fetched, read, writes).forEach((day, record) -> { // The days are merged with the ones read above
+				if (missing.contains(day)) {
+					days.put(day, projected(record, key));
+				}
+			});
+			WeatherResponse result = assembled(key, range, days);
+			writes.response(key, result);
+			return result;
+		});
+	}
+	
+	/**
+	 * Looks up the cached days of the request
+	 * @param key - All the parameters of the request
+	 * @param days - The days of the request
+	 * @return - The cached days (empty, if not cached), in the order of the dates
+	 */
+	private Map<LocalDate, Optional<Forecast>> cachedDays(RequestKey key, Collection<LocalDate> days) {
+		Map<String, byte[]> values = Collections.emptyMap();
+		try {
+			values = service.getMany(days.stream().map(key::toDayCacheKey).collect(Collectors.toList())); // One read for all the days
+		} catch (RuntimeException e) {
+			log.ifPresent(log -> log.warning("Could not look up the cached days: " + key.toCacheKey(), e));
+		}
+		Map<LocalDate, Optional<Forecast>> result = new LinkedHashMap<>();
+		List<String> corrupted = new ArrayList<>();
+		for (LocalDate day : days) {
+			String dayKey = key.toDayCacheKey(day);
+			Optional<Forecast> record = decoded(dayKey, values.get(dayKey));
+			try {
+				if (record.isPresent() && record.get().decodeAll().getDays() != 1) {
+					throw new UncheckedIOException(new IOException("Not a single day: " + record.get().getDays()));
+				}
+			} catch (UncheckedIOException e) {
+				log.ifPresent(log -> log.warning("Could not decode the cached day, fetching it again: " + dayKey, e));
+				corrupted.add(dayKey);
+				record = Optional.empty();
+			}
+			result.put(day, record);
+		}
+		if (!corrupted.isEmpty()) {
+			evict(corrupted);
+		}
+		return result;
+	}
+	
+	/**
+	 * Drops the corrupted values from memory and from the database service (so they are not read again)
+	 * @param cacheKeys - Keys of the values
+	 */
+	private void evict(Collection<String> cacheKeys) {
+		cacheKeys.forEach(near::evict);
+		try {
+			service.remove(cacheKeys);
+		} catch (RuntimeException e) {
+			log.ifPresent(log -> log.warning("Could not remove the corrupted cached values", e));
+		}
+	}
+	
+	/**
+	 * Caches every day of the response separately, tagged with the elements of the request.
+	 * If the day is already cached with other elements, the elements are merged
+	 * @param key - All the parameters of the request
+	 * @param response - The response, received from the server
+	 * @param read - The cached days, which have already been read (the other days are read before they are merged)
+	 * @param writes - How the days are cached
+	 * @return - The cached days, by their dates
+	 */
+	private Map<LocalDate, Forecast> cacheDays(RequestKey key, WeatherResponse response, Map<LocalDate, Optional<Forecast>> read, Writes writes) {
+		Forecast forecast = response.getForecast();
+		int datetime = forecast.column("datetime");
+		Map<LocalDate, Integer> dates = new LinkedHashMap<>();
+		for (int day = 0; day < forecast.getDays(); day++) {
+			try {
+				dates.put(LocalDate.parse(forecast.getText(day, datetime)), day);
+			} catch (DateTimeParseException | NullPointerException e) {
+				log.ifPresent(log -> log.warning("Could not cache a day without a valid date: " + key.toCacheKey(), e));
+			}
+		}
+		
+		Map<LocalDate, Optional<Forecast>> previous = new HashMap<>(read);
+		Set<LocalDate> unread = new HashSet<>(dates.keySet());
+		unread.removeAll(read.keySet());
+		if (!unread.isEmpty()) {
+			previous.putAll(cachedDays(key, unread));
+		}
+		Map<LocalDate, Forecast> result = new HashMap<>();
+		Map<String, byte[]> values = new LinkedHashMap<>();
+		for (Map.Entry<LocalDate, Integer> entry : dates.entrySet()) {
+			LocalDate date = entry.getKey();
+			Set<String> elements = new TreeSet<>(key.getElements());
+			Forecast record = forecast.slice(entry.getValue(), entry.getValue() + 1);
 			
-			if (service != null) {
-				service.getObject(location).ifPresent(lastResponse -> response.updated(lastResponse));
+			Optional<Forecast> cached = previous.get(date);
+			Optional<Set<String>> cachedElements = cached.flatMap(WeatherController::elementsOf);
+			if (!elements.isEmpty() && cachedElements.isPresent()) {
+				// Keep the cached elements, which were not received this time
+				record = cached.get().withColumns(record);
+				if (cachedElements.get().isEmpty()) {
+					elements.clear(); // Still all the elements
+				} else {
+					elements.addAll(cachedElements.get());
+				}
 			}
 			
-			return response; // Return the last response
+			record = record.withField(ELEMENTS_TAG, elements.isEmpty() ? ALL_ELEMENTS : String.join(",", elements));
+			values.put(key.toDayCacheKey(date), ForecastCodec.encode(record));
+			result.put(date, record);
+		}
+		writes.values(values); // One write for all the days
+		return result;
+	}
+	
+	/**
+	 * Get the elements, which the cached day has been received with
+	 * @param record - The cached day
+	 * @return - Optional elements (an empty set means all the elements; empty, if the day is not tagged)
+	 */
+	private static Optional<Set<String>> elementsOf(Forecast record) {
+		return record.field(ELEMENTS_TAG).map(tag -> {
+			String elements = String.valueOf(tag);
+			return elements.equals(ALL_ELEMENTS) ? Collections.<String>emptySet() : new HashSet<>(Arrays.asList(elements.split(",")));
+		});
+	}
+	
+	/**
+	 * Whether the cached elements include all the wanted ones
+	 * @param cached - The elements of the cached day (an empty set means all the elements)
+	 * @param wanted - The elements of the request (an empty set means all the elements)
+	 * @return - true if the cached day answers the request
+	 */
+	private static boolean covers(Set<String> cached, Set<String> wanted) {
+		return cached.isEmpty() || (!wanted.isEmpty() && cached.containsAll(wanted));
+	}
+	
+	/**
+	 * Leaves only the elements of the request in the cached day
+	 * @param record - The cached day
+	 * @param key - All the parameters of the request
+	 * @return - The day, as if it has been received for the request
+	 */
+	private static Forecast projected(Forecast record, RequestKey key) {
+		Forecast result = record.withField(ELEMENTS_TAG, null);
+		if (key.getElements().isEmpty()) {
+			return result;
+		}
+		Set<String> columns = new HashSet<>(key.getElements());
+		if (key.getInclude().contains("hours")) {
+			columns.add("hours");
+		}
+		return result.select(columns);
+	}
+	
+	/**
+	 * Assembles the response from the days (the days, which could not be received, are left out)
+	 * @param key - All the parameters of the request
+	 * @param range - The days of the request
+	 * @param days - The days, by their dates
+	 * @return - The response, which is as old as its oldest day
+	 */
+	private WeatherResponse assembled(RequestKey key, DateRange range, Map<LocalDate, Forecast> days) {
+		List<Forecast> parts = new ArrayList<>();
+		range.days().stream().map(days::get).filter(Objects::nonNull).forEach(parts::add);
+		if (parts.isEmpty()) {
+			return failed(new IOException("No days received for " + key));
 		}
 		
-		// Update
-		lastRequestMillis = System.currentTimeMillis();
+		// The response is as fresh as its oldest day
+		Forecast joined = Forecast.join(parts);
+		Forecast oldest = parts.get(0);
+		for (Forecast part : parts) {
+			if (updatedAt(part) < updatedAt(oldest)) {
+				oldest = part;
+			}
+		}
+		for (String field : List.of("last_update", "last_update_millis")) {
+			Optional<Object> value = oldest.field(field);
+			if (value.isPresent()) {
+				joined = joined.withField(field, value.get());
+			}
+		}
+		return restored(joined);
+	}
+	
+	/**
+	 * Get the time, when the forecast was received from the server
+	 * @param forecast - Some forecast
+	 * @return - Time in milliseconds (0 if unknown)
+	 */
+	private static long updatedAt(Forecast forecast) {
+		return forecast.field("last_update_millis")
+				.filter(Number.class::isInstance)
+				.map(value -> ((Number) value).longValue())
+				.orElse(0L);
+	}
+	
+	/**
+	 * Remembers the time zone of the location (to resolve the relative dates of the next requests)
+	 * @param key - All the parameters of the request
+	 * @param response - The response, received from the server (or restored from the database)
+	 */
+	private void learnZone(RequestKey key, WeatherResponse response) {
+		if (key.getLocation() == null) {
+			return;
+		}
+		response.getForecast().field("timezone").ifPresent(timezone -> {
+			try {
+				zones.put(key.getLocation(), ZoneId.of(String.valueOf(timezone)));
+			} catch (DateTimeException e) {
+				log.ifPresent(log -> log.warning("Unknown time zone: " + timezone, e));
+			}
+		});
+	}
+	
+	/**
+	 * Sends the request to the Visual Crossing server, caches the response
+	 * @param key - All the parameters of the request
+	 * @param writes - How the response is cached
+	 * @return - A future, completed with the response facade
+	 */
+	private CompletableFuture<WeatherResponse> fetch(RequestKey key, Writes writes) {
+		return fetch(key, writes, () -> fallback(key), result -> {
+			writes.response(key, result); // Cache it under the key of the request
+			RequestKey dated = resolved(key); // The zone of the location is known by now
+			if (dayRange(dated).isPresent()) {
+				cacheDays(dated, result, Collections.emptyMap(), writes); // And by the days
+			}
+			return result;
+		});
+	}
+	
+	/**
+	 * Sends the request to the Visual Crossing server
+	 * @param key - All the parameters of the request
+	 * @param writes - How the response is cached (a quiet response is not published)
+	 * @param fallback - Looks up the cached response, when the server is not available
+	 * @param received - Caches the received response (only if there is a database service), may replace it with another one
+	 * @return - A future, completed with the response facade (the one, returned by "received")
+	 */
+	private CompletableFuture<WeatherResponse> fetch(RequestKey key, Writes writes, Supplier<Optional<WeatherResponse>> fallback,
+			UnaryOperator<WeatherResponse> received) {
+		String location = key.getLocation();
 		
 		// Wrong or absent API in ".properties"
 		if (apiKey == null) {
@@ -190,45 +1142,243 @@ public class WeatherController {
 		}
 		
 		// Collect the request parameters
-		String include = String.join(",", this.include);
-		String elements = String.join(",", this.elements);
-		
-		// Finally, send the request
-		URI uri = URI.create(String.format("https://weather.visualcrossing.com/VisualCrossingWebServices/rest/services/timeline/%s/%s?key=%s&unitGroup=%s&lang=%s&include=%s&elements=%s&contentType=json", location, forDate, apiKey, units, lang, include, elements));
-		HttpClient client = HttpClient.newHttpClient();
-		HttpRequest request = HttpRequest.newBuilder()
-				.uri(uri)
-				.timeout( Duration.ofSeconds(10) )
-				.GET()
-				.build();
+		String include = String.join(",", key.getInclude());
+		String elements = String.join(",", key.getElements());
+		// Decodes the body as it is received, keeping only what we have asked for
+		ForecastDecoder decoder = new ForecastDecoder(key.getElements(), key.getInclude());
 		
 		// The default status
 		status = STATUS.FAILED_TO_FETCH;
+		
+		// Finally, send the request
+		URI uri;
+		HttpRequest request;
 		try {
-			HttpResponse<String> httpResponse = client.send(request, HttpResponse.BodyHandlers.ofString());
-			lastStatusCode = httpResponse.statusCode();
-			response.update(new JSONObject(httpResponse.body())); // Update the response
-			status = STATUS.READY; // Update to the OK status
-		}
-		// Some errors...
-		catch (IOException e) {
-			log.ifPresent(log -> log.warning("URL not found: " + uri, e));
-			response.update(e);
-		} catch (InterruptedException e) {
-			log.ifPresent(log -> log.warning("Connection interrupted", e));
-			response.update(e);
-		} catch (org.json.JSONException e) {
-			log.ifPresent(log -> log.warning("Either API key is not valid, or the location is not specified", e));
-			response.update(e);
-		} catch (Exception e) {
-			log.ifPresent(log -> log.warning("Unknown exception", e));
-			response.update(e);
-			e.printStackTrace();
-		} finally {
-			log.ifPresent(log -> log.info("STATUS CODE: " + lastStatusCode));
+			uri = URI.create(String.format(TIMELINE + "%s/%s?key=%s&unitGroup=%s&lang=%s&include=%s&elements=%s&contentType=json", location, key.getForDate(), apiKey, UnitSystem.CANONICAL.getId(), key.getLang(), include, elements));
+			request = HttpRequest.newBuilder()
+					.uri(uri)
+					.timeout(requestTimeout)
+					.header("Accept-Encoding", ForecastDecoder.ACCEPT_ENCODING) // The timeline JSON compresses very well
+					.GET()
+					.build();
+		} catch (IllegalArgumentException e) {
+			log.ifPresent(log -> log.warning("Could not create the request URI for the location: " + location, e));
+			return CompletableFuture.completedFuture(writes.quiet ? WeatherResponse.failed(e, log.orElse(null)) : failed(e));
 		}
 		
-		return response;
+		// Wait for our turn (if we are over the rate limit), then send (and re-send, if the server fails)
+		return limiter.acquire(rateWait, executor)
+				.thenCompose(admitted -> send(request, decoder, 0))
+				.thenApplyAsync(httpResponse -> {
+					lastStatusCode = httpResponse.statusCode();
+					WeatherResponse result = WeatherResponse.received(httpResponse.body().get(), log.orElse(null)); // Decode the response
+					learnZone(key, result);
+					if (service != null) {
+						result = received.apply(result);
+					}
+					if (!writes.quiet) {
+						publish(result);
+					}
+					status = STATUS.READY; // Update to the OK status
+					return result;
+				}, executor)
+				// Some errors...
+				.exceptionally(t -> {
+					Throwable e = unwrap(t);
+					if (e instanceof TimeoutException) {
+						lastStatusCode = -1;
+						log.ifPresent(log -> log.info("Too many requests: " + e.getMessage()));
+					} else if (e instanceof UpstreamException && !RETRYABLE_STATUSES.contains(((UpstreamException) e).getStatusCode())) {
+						lastStatusCode = ((UpstreamException) e).getStatusCode();
+						log.ifPresent(log -> log.warning("Either API key is not valid, or the location is not specified", (Exception) e));
+					} else if (e instanceof IOException) {
+						if (e instanceof UpstreamException) {
+							lastStatusCode = ((UpstreamException) e).getStatusCode();
+						}
+						// The server is not available: the last cached response is better than nothing
+						Optional<WeatherResponse> cached = fallback.get();
+						if (cached.isPresent()) {
+							log.ifPresent(log -> log.warning("The server is not available, serving the cached response: " + key.toCacheKey(), (Exception) e));
+							return cached.get();
+						}
+						log.ifPresent(log -> log.warning("URL not found: " + uri, (Exception) e));
+					} else if (e instanceof InterruptedException) {
+						log.ifPresent(log -> log.warning("Connection interrupted", (Exception) e));
+					} else if (e instanceof org.json.JSONException) {
+						log.ifPresent(log -> log.warning("Either API key is not valid, or the location is not specified", (Exception) e));
+					} else {
+						log.ifPresent(log -> log.warning("Unknown exception", e instanceof Exception ? (Exception) e : null));
+						e.printStackTrace();
+					}
+					Exception cause = e instanceof Exception ? (Exception) e : new RuntimeException(e);
+					return writes.quiet ? WeatherResponse.failed(cause, log.orElse(null)) : failed(cause);
+				})
+				.whenComplete((result, e) -> log.ifPresent(log -> log.info("STATUS CODE: " + lastStatusCode)));
+	}
+	
+	/**
+	 * Sends the request; if it fails with an I/O error or a retryable status, sends it again after a delay
+	 * (exponential back-off with full jitter, or the delay, asked by the server in the "Retry-After" header). <br>
+	 * While the circuit breaker is open, the request is not sent at all.
+	 * @param request - The request to the server
+	 * @param decoder - The decoder of the response body
+	 * @param attempt - How many times the request has already been re-sent
+	 * @return - A future, completed with the last received HTTP response
+	 */
+	private CompletableFuture<HttpResponse<Supplier<JSONObject>>> send(HttpRequest request, ForecastDecoder decoder, int attempt) {
+		if (!breaker.allowRequest()) {
+			return CompletableFuture.failedFuture(new CircuitBreaker.OpenException());
+		}
+		CompletableFuture<HttpResponse<Supplier<JSONObject>>> sent;
+		try {
+			sent = client.sendAsync(request, decoder.bodyHandler());
+		} catch (RuntimeException e) {
+			breaker.onAbort(); // Thrown at once (e.g. IllegalArgumentException, SecurityException): the trial permit is released
+			return CompletableFuture.failedFuture(e);
+		}
+		return sent
+				.handle((httpResponse, t) -> {
+					Throwable e = t == null ? null : unwrap(t);
+					if (e != null && !(e instanceof IOException)) {
+						breaker.onAbort(); // Not the server's failure (e.g. the request could not be sent at all)
+						return CompletableFuture.<HttpResponse<Supplier<JSONObject>>>failedFuture(e);
+					}
+					boolean retryable = e != null || RETRYABLE_STATUSES.contains(httpResponse.statusCode());
+					if (!retryable) {
+						breaker.onSuccess();
+						return CompletableFuture.completedFuture(httpResponse);
+					}
+					if (breaker.onFailure()) {
+						log.ifPresent(log -> log.info("The server keeps failing: requests are paused for " + breakerOpen.toSeconds() + " seconds"));
+					}
+					if (attempt >= retryAttempts) {
+						return e != null
+								? CompletableFuture.<HttpResponse<Supplier<JSONObject>>>failedFuture(e)
+								: CompletableFuture.completedFuture(httpResponse);
+					}
+					long delay = backOff(attempt, httpResponse);
+					log.ifPresent(log -> log.info("Request failed (" + (e != null ? e.getClass().getSimpleName() : "status " + httpResponse.statusCode())
+							+ "), retrying in " + delay + " ms"));
+					return CompletableFuture.runAsync(() -> {}, CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS, executor))
+							.thenCompose(waited -> limiter.acquire(rateWait, executor))
+							.thenCompose(admitted -> send(request, decoder, attempt + 1));
+				})
+				.thenCompose(Function.identity());
+	}
+	
+	/**
+	 * Computes the delay before re-sending the request
+	 * @param attempt - How many times the request has already been re-sent
+	 * @param httpResponse - The failed response (null, if there was no response at all)
+	 * @return - Delay in milliseconds
+	 */
+	private long backOff(int attempt, HttpResponse<?> httpResponse) {
+		long ceiling = Math.min(retryMaxDelay.toMillis(), retryDelay.toMillis() << Math.min(attempt, 20));
+		long delay = ThreadLocalRandom.current().nextLong(ceiling + 1); // Full jitter: the clients don't retry in lockstep
+		if (httpResponse != null) {
+			Optional<String> retryAfter = httpResponse.headers().firstValue("Retry-After");
+			if (retryAfter.isPresent()) {
+				try {
+					delay = Math.max(delay, Math.min(retryMaxDelay.toMillis(), Long.parseLong(retryAfter.get().trim()) * 1000));
+				} catch (NumberFormatException e) {
+					// An HTTP-date instead of seconds; the jittered delay will do
+				}
+			}
+		}
+		return delay;
+	}
+	
+	/**
+	 * Looks up the cached response, when the server is not available: the last good copy in memory
+	 * (kept after the database has expired it), or the one in the database
+	 * @param key - All the parameters of the request
+	 * @return - Optional response, restored from memory or from the database
+	 */
+	private Optional<WeatherResponse> fallback(RequestKey key) {
+		Optional<Forecast> lastGood = near.lastGood(key.toCacheKey());
+		if (lastGood.isPresent() || service == null) {
+			return lastGood.map(this::restored);
+		}
+		try {
+			return service.getForecast(key.toCacheKey()).map(this::restored);
+		} catch (RuntimeException e) {
+			log.ifPresent(log -> log.warning("Could not look up the cached response: " + key, e));
+			return Optional.empty();
+		}
+	}
+	
+	/**
+	 * Looks up the cached response by the days, when the server is not available: the whole response (see {@link #fallback(RequestKey)}),
+	 * or the days, which are cached
+	 * @param key - All the parameters of the request
+	 * @param range - The days of the request
+	 * @param days - The cached days, by their dates
+	 * @return - Optional response (some of the days may be left out)
+	 */
+	private Optional<WeatherResponse> partial(RequestKey key, DateRange range, Map<LocalDate, Forecast> days) {
+		Optional<WeatherResponse> whole = fallback(key);
+		if (whole.isPresent() || days.isEmpty()) {
+			return whole;
+		}
+		log.ifPresent(log -> log.info("Serving " + days.size() + " of " + range.length() + " days: " + key.toCacheKey()));
+		return Optional.of(assembled(key, range, days));
+	}
+	
+	/**
+	 * Get the current state of the circuit breaker around the requests to the server
+	 * @return - CircuitBreaker.STATE (OPEN means the requests fail fast)
+	 */
+	public CircuitBreaker.STATE getBreakerState() {
+		return breaker.getState();
+	}
+	
+	/**
+	 * Get the actual cause of a failed request
+	 * @param t - Exception, completing the request's future
+	 * @return - The exception without the CompletionException/UncheckedIOException wrappers
+	 */
+	private static Throwable unwrap(Throwable t) {
+		while ((t instanceof CompletionException || t instanceof UncheckedIOException) && t.getCause() != null) {
+			t = t.getCause();
+		}
+		return t;
+	}
+	
+	/**
+	 * Creates a snapshot of the response, restored from the database, which logs with the logger
+	 * @param forecast - Forecast, restored from the database
+	 * @return - A new WeatherResponse
+	 */
+	private WeatherResponse restored(Forecast forecast) {
+		return WeatherResponse.restored(forecast, log.orElse(null));
+	}
+	
+	/**
+	 * Creates a snapshot of the failed request (and makes it the last one)
+	 * @param e - Exception caught when trying to receive the response
+	 * @return - A new WeatherResponse with the FAILURE status
+	 */
+	private WeatherResponse failed(Exception e) {
+		return publish(WeatherResponse.failed(e, log.orElse(null)));
+	}
+	
+	/**
+	 * Makes the snapshot the last response, unless a newer one has already been published
+	 * (the requests may complete in any order)
+	 * @param snapshot - A new response snapshot
+	 * @return - The snapshot itself
+	 */
+	private WeatherResponse publish(WeatherResponse snapshot) {
+		response.accumulateAndGet(snapshot, (last, next) -> next.getVersion() > last.getVersion() ? next : last);
+		return snapshot;
+	}
+	
+	/**
+	 * Get the last response (received from the server, restored from the database or failed), published by the controller
+	 * @return - The latest immutable response snapshot, in the current unit system (never null)
+	 */
+	public WeatherResponse getLastResponse() {
+		return response.get().withUnits(units);
 	}
 	
 	/**
@@ -236,7 +1386,7 @@ public class WeatherController {
 	 * @return - "C" (Celsius), "F" (Fahrengeit) or "K" (Kelvin)
 	 */
 	public String getDegreeUnit() {
-		return units.equals("metric") || units.equals("uk") ? "C" : units.equals("us") ? "F" : "K";
+		return units.getDegreeUnit();
 	}
 	
 	/**
@@ -252,10 +1402,14 @@ public class WeatherController {
 	 * It is absolutely needed to close all the connections (of logger to a log file and of sevice to the database) on application quit.
 	 */
 	public void dispose() {
+		saveHotKeys();
 		log.ifPresent(log -> log.dispose());
 		if (service != null) {
 			service.dispose();
 		}
+		if (ownExecutor != null) {
+			ownExecutor.shutdown();
+		}
 	}
 	
 	/**
@@ -272,11 +1426,138 @@ public class WeatherController {
 	 */
 	public void setLogger(WeatherLogger logger) {
 		log = Optional.of(logger);
-		if (response != null) {
-			response.setLogger(logger);
+	}
+
+	/**
+	 * Creates the shared HTTP client: HTTP/2 preferred (falls back to HTTP/1.1 if the server does not support it),
+	 * redirects followed, connections pooled and kept alive by the client itself
+	 * @return - A new HttpClient instance
+	 */
+	private HttpClient createClient() {
+		HttpClient.Builder builder = HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_2)
+				.followRedirects(HttpClient.Redirect.NORMAL)
+				.connectTimeout(connectTimeout);
+		if (executor != null) {
+			builder.executor(executor);
 		}
+		return builder.build();
+	}
+	
+	/**
+	 * Parses a property value (a positive integer)
+	 * @param value - String value of the property
+	 * @param defaultValue - Returned, if the value is not a positive number
+	 * @return - Parsed number, or the default one
+	 */
+	private int parseCount(String value, int defaultValue) {
+		try {
+			int count = Integer.parseInt(value.trim());
+			if (count > 0) {
+				return count;
+			}
+		} catch (NumberFormatException e) {
+			log.ifPresent(log -> log.warning("Not a positive number in the properties: " + value, e));
+		}
+		return defaultValue;
+	}
+	
+	/**
+	 * Parses a property value (a non-negative integer, 0 to disable the feature)
+	 * @param value - String value of the property
+	 * @param defaultValue - Returned, if the value is not a number
+	 * @return - Parsed number, or the default one
+	 */
+	private int parseLimit(String value, int defaultValue) {
+		try {
+			return Math.max(0, Integer.parseInt(value.trim()));
+		} catch (NumberFormatException e) {
+			log.ifPresent(log -> log.warning("Not a number in the properties: " + value, e));
+		}
+		return defaultValue;
+	}
+	
+	/**
+	 * Parses a property value (a number of seconds)
+	 * @param value - String value of the property
+	 * @param defaultValue - Returned, if the value is not a positive number
+	 * @return - Parsed Duration, or the default one
+	 */
+	private Duration parseSeconds(String value, Duration defaultValue) {
+		try {
+			long seconds = Long.parseLong(value.trim());
+			if (seconds > 0) {
+				return Duration.ofSeconds(seconds);
+			}
+		} catch (NumberFormatException e) {
+			log.ifPresent(log -> log.warning("Not a number of seconds in the properties: " + value, e));
+		}
+		return defaultValue;
 	}
 
+	/**
+	 * How the fetched responses are cached: written at once, or collected to be written with one call
+	 * (see {@link #sendRequests(Collection, String)}). The quiet responses do not become the last one
+	 * (neither published, nor cached as the "last_request"); neither do the collected ones become the "last_request"
+	 */
+	private final class Writes {
+		private final boolean quiet;
+		private final Map<String, byte[]> batch; // The collected values (null, if written at once)
+		
+		/**
+		 * @param quiet - true not to make the responses the last one
+		 * @param batched - true to collect the values (until {@link #flush()})
+		 */
+		private Writes(boolean quiet, boolean batched) {
+			this.quiet = quiet;
+			this.batch = batched ? new LinkedHashMap<>() : null;
+		}
+		
+		/**
+		 * Caches the response under the key of the request (in the database and in memory)
+		 * @param key - All the parameters of the request
+		 * @param result - The response
+		 */
+		private void response(RequestKey key, WeatherResponse result) {
+			if (!quiet && batch == null) {
+				service.update(key.toCacheKey(), result);
+			} else {
+				result.serialize().ifPresent(value -> values(Map.of(key.toCacheKey(), value)));
+			}
+			if (result.hasBody()) {
+				near.put(key.toCacheKey(), result.getForecast());
+			}
+		}
+		
+		/**
+		 * Caches the values in the database
+		 * @param values - The values by their keys
+		 */
+		private void values(Map<String, byte[]> values) {
+			if (batch == null) {
+				service.putMany(values);
+				return;
+			}
+			synchronized (batch) {
+				batch.putAll(values);
+			}
+		}
+		
+		/**
+		 * Writes the collected values
+		 */
+		private void flush() {
+			Map<String, byte[]> values;
+			synchronized (batch) {
+				values = new LinkedHashMap<>(batch);
+				batch.clear();
+			}
+			if (!values.isEmpty()) {
+				service.putMany(values);
+			}
+		}
+	}
+	
 	/**
 	 * FAILED_TO_INITIALIZE - not able to send requests (because no API key or something else) <br>
 	 * FAILED_TO_FETCH - a server error OR wrong request arguments <br>
@@ -5,55 +5,150 @@ import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
 
-import org.json.JSONArray;
-import org.json.JSONException;
 import org.json.JSONObject;
 
 import sh.roadmap.tavi.weatherapi.logging.WeatherLogger;
-import sh.roadmap.tavi.weatherapi.service.IWeatherService;
 
 /**
- * A facade for the JSONObject, received as a response from the VisualCrossing web service.
- * Meant to be re-utilized for several times during the application run-time.
+ * An immutable snapshot of the response from the VisualCrossing web service. <br>
+ * Every fetch (or cache hit) produces a new snapshot, so it may be freely shared between threads
+ * (for example, created on a connection thread and read on the UI thread).
+ * The body is parsed once into a typed {@link Forecast}; the get() methods are views over it. <br>
+ * The body is always in the {@link UnitSystem#CANONICAL} unit group; the get() methods convert the values
+ * to the unit system of the snapshot (see {@link #withUnits(UnitSystem)}).
  */
 public class WeatherResponse {
 	
-	private JSONObject body;
-	private long updatedDate; // Last time the response has been received
-	private IWeatherService service; // DB connection (optional, for caching)
-	private Optional<WeatherLogger> log = Optional.empty();
+	// Snapshots are numbered in the order of their creation (to tell the newer one)
+	private static final AtomicLong versions = new AtomicLong();
 	
-	private STATUS status;
+	private final Forecast forecast; // The parsed body
+	private final boolean hasBody;
+	private final long updatedDate; // Last time the response has been received
+	private final long version;
+	private final UnitSystem units; // The unit system to convert the values to, when they are read
+	private final Optional<WeatherLogger> log;
+	
+	private final STATUS status;
+	private final Exception exception; // The cause of the FAILURE status
 	
 	/**
 	 * Creates an empty WeatherResponse object, with no information
 	 */
 	public WeatherResponse() {
+		this(Forecast.EMPTY, false, 0, STATUS.OK, null, null);
 	}
-
+	
 	/**
 	 * Creates a WeatherResponse object, with the information on the weather
 	 * @param responseBody - JSONObject, received from the server
 	 */
 	public WeatherResponse(JSONObject responseBody) {
-		update(responseBody);
+		this(received(responseBody, null));
 	}
 	
 	/**
-	 * Creates an empty WeatherResponse object, then changes its status (depending on the exception)
+	 * Creates an empty WeatherResponse object with the FAILURE status
 	 * @param e - Exception, caught when trying to receive the response
 	 */
 	public WeatherResponse(Exception e) {
-		update(e);
+		this(failed(e, null));
+	}
+	
+	private WeatherResponse(WeatherResponse other) {
+		this(other, other.units);
+	}
+	
+	private WeatherResponse(WeatherResponse other, UnitSystem units) {
+		this.forecast = other.forecast;
+		this.hasBody = other.hasBody;
+		this.updatedDate = other.updatedDate;
+		this.status = other.status;
+		this.exception = other.exception;
+		this.log = other.log;
+		this.version = other.version; // The same snapshot, only viewed in other units
+		this.units = units;
+	}
+	
+	private WeatherResponse(Forecast forecast, boolean hasBody, long updatedDate, STATUS status, Exception exception, WeatherLogger logger) {
+		this.forecast = forecast;
+		this.hasBody = hasBody;
+		this.updatedDate = updatedDate;
+		this.status = status;
+		this.exception = exception;
+		this.log = Optional.ofNullable(logger);
+		this.version = versions.incrementAndGet();
+		this.units = UnitSystem.CANONICAL;
 	}
 	
 	/**
-	 * (Optional) Sets the database service, used for caching the results
-	 * @param service - The database API service used
+	 * Creates a snapshot of the response, which has just been received from the server
+	 * (the time of the update is added to the body)
+	 * @param responseBody - JSONObject received from the VisualCrossing web service (must not be changed afterwards)
+	 * @param logger - Optional logger (may be null)
+	 * @return - A new WeatherResponse with the OK status
 	 */
-	public void setService(IWeatherService service) {
-		this.service = service;
+	public static WeatherResponse received(JSONObject responseBody, WeatherLogger logger) {
+		SimpleDateFormat dateFormat = new SimpleDateFormat("dd MMMM yyyy hh:mm:ss a", Locale.US);
+		long updatedDate = System.currentTimeMillis();
+		responseBody.put("last_update", dateFormat.format(new Date(updatedDate)));
+		responseBody.put("last_update_millis", updatedDate); // For telling the age of the cached response
+		
+		return new WeatherResponse(Forecast.of(responseBody), true, updatedDate, STATUS.OK, null, logger);
+	}
+	
+	/**
+	 * Creates a snapshot of the response, which was cached in the database
+	 * @param responseBody - JSONObject, restored from the database
+	 * @param logger - Optional logger (may be null)
+	 * @return - A new WeatherResponse with the OK status
+	 */
+	public static WeatherResponse restored(JSONObject responseBody, WeatherLogger logger) {
+		return restored(Forecast.of(responseBody), logger);
+	}
+	
+	/**
+	 * Creates a snapshot of the response, which was cached in the database in the binary format
+	 * @param forecast - Forecast, decoded with {@link ForecastCodec#decode(byte[])}
+	 * @param logger - Optional logger (may be null)
+	 * @return - A new WeatherResponse with the OK status
+	 */
+	public static WeatherResponse restored(Forecast forecast, WeatherLogger logger) {
+		long updatedDate = forecast.field("last_update_millis")
+				.filter(Number.class::isInstance)
+				.map(value -> ((Number) value).longValue())
+				.orElse(0L);
+		return new WeatherResponse(forecast, true, updatedDate, STATUS.OK, null, logger);
+	}
+	
+	/**
+	 * Creates a snapshot of the failed request
+	 * @param e - Exception caught during REST API request
+	 * @param logger - Optional logger (may be null)
+	 * @return - A new WeatherResponse with the FAILURE status
+	 */
+	public static WeatherResponse failed(Exception e, WeatherLogger logger) {
+		return new WeatherResponse(Forecast.EMPTY, false, 0, STATUS.FAILURE, e, logger);
+	}
+	
+	/**
+	 * Get the same snapshot, which converts the values to another unit system when they are read
+	 * (nothing is fetched or parsed again)
+	 * @param units - The unit system
+	 * @return - A WeatherResponse with the same body and version
+	 */
+	public WeatherResponse withUnits(UnitSystem units) {
+		return units == this.units ? this : new WeatherResponse(this, units);
+	}
+	
+	/**
+	 * Get the unit system, to which the values are converted
+	 * @return - The unit system of the snapshot
+	 */
+	public UnitSystem getUnits() {
+		return units;
 	}
 	
 	/**
@@ -63,45 +158,57 @@ public class WeatherResponse {
 	 * @return Optional String, possibly containing the desired value (Optional.empty() if no such day or no such key)
 	 */
 	public Optional<String> get(int day, String key) {
-		try {
-			JSONArray days = body.optJSONArray("days");
-			JSONObject dayObject = days.getJSONObject(day);
-			Object result = dayObject.opt(key);
-			
-			if (result != null) {
-				return Optional.of(String.valueOf(result));
-			}
-		} catch (JSONException e1) {
-			//status = e1;
-			log.ifPresent(log -> log.warning("Array index out of bounds: " + String.valueOf(day), e1));
-		} catch (NullPointerException e2) {
-			//status = e2;
-			log.ifPresent(log -> log.warning("Non-existent key \"days\" in response body OR response body absent", e2));
+		if (!hasDay(day)) {
+			return Optional.empty();
 		}
-		
-		return Optional.empty();
+		return Optional.ofNullable(units.convert(key, forecast.getText(day, forecast.column(key))));
 	}
 	
 	/**
-	 * 
+	 * Used to retrieve some numeric information on the weather at a particular day (without boxing or parsing)
+	 * @param day - Some day, containing some information on the weather (starting from 0)
+	 * @param key - Some numeric information on the weather at this day (temp, tempmin, tempmax, etc.)
+	 * @return - The value, or NaN if no such day or no such key (or the value is not a number)
+	 */
+	public double getDouble(int day, String key) {
+		return units.convert(key, forecast.getNumber(day, forecast.column(key)));
+	}
+	
+	/**
+	 *
 	 * @param day - Some particular day you want to get the weather information for (starting from 0)
 	 * @return - Optional JSONObject with all the weather information on this day (if the day is existent in the response, otherwise empty)
 	 */
 	public Optional<JSONObject> get(int day) {
-		try {
-			JSONArray days = body.optJSONArray("days");
-			JSONObject dayObject = days.getJSONObject(day);
-
-			return Optional.of(dayObject);
-		} catch (JSONException e1) {
-			//status = e1;
-			log.ifPresent(log -> log.warning("Array index out of bounds: " + String.valueOf(day), e1));
-		} catch (NullPointerException e2) {
-			//status = e2;
-			log.ifPresent(log -> log.warning("Non-existent key \"days\" in response body OR response body absent", e2));
+		if (!hasDay(day)) {
+			return Optional.empty();
 		}
-		
-		return Optional.empty();
+		return forecast.day(day).map(units::convert);
+	}
+	
+	/**
+	 * Get the typed model of the response
+	 * @return - The parsed response body, in the {@link UnitSystem#CANONICAL} unit group (an empty Forecast, if there is no body)
+	 */
+	public Forecast getForecast() {
+		return forecast;
+	}
+	
+	/**
+	 * Checks whether the day is present in the response (logs the reason if it is not)
+	 * @param day - Some day (starting from 0)
+	 * @return - true if the response has the day
+	 */
+	private boolean hasDay(int day) {
+		if (!hasBody || forecast.getDays() == 0) {
+			log.ifPresent(log -> log.warning("Non-existent key \"days\" in response body OR response body absent", null));
+			return false;
+		}
+		if (day < 0 || day >= forecast.getDays()) {
+			log.ifPresent(log -> log.warning("Array index out of bounds: " + String.valueOf(day), null));
+			return false;
+		}
+		return true;
 	}
 	
 	/**
@@ -113,16 +220,22 @@ public class WeatherResponse {
 	 */
 	public <T> Optional<T> get(String key, Class<T> castTo) {
 		try {
-			Object resultTemp = body.get(key);
-			T result = castTo.cast(resultTemp);
-
+			if (!hasBody) {
+				log.ifPresent(log -> log.warning("Response body absent", null));
+				return Optional.empty();
+			}
+			Optional<Object> resultTemp = forecast.field(key);
+			if (resultTemp.isEmpty()) {
+				log.ifPresent(log -> log.warning("Key not found: " + key, null));
+				return Optional.empty();
+			}
+			Object value = resultTemp.get();
+			if (value instanceof JSONObject) {
+				units.convert((JSONObject) value); // The current conditions
+			}
+			T result = castTo.cast(value);
+			
 			return Optional.of(result);
-		} catch (JSONException e1) {
-			//status = e1;
-			log.ifPresent(log -> log.warning("Key not found: " + key, e1));
-		} catch (NullPointerException e2) {
-			//status = e2;
-			log.ifPresent(log -> log.warning("Non-existent key \"days\" in response body OR response body absent", e2));
 		} catch (ClassCastException e3) {
 			//status = e3;
 			log.ifPresent(log -> log.warning("Class cast failed: " + key, e3));
@@ -131,6 +244,14 @@ public class WeatherResponse {
 		return Optional.empty();
 	}
 	
+	/**
+	 * Whether the response has a body (it has been received from the server or restored from the database)
+	 * @return - true if there is a body
+	 */
+	public boolean hasBody() {
+		return hasBody;
+	}
+	
 	/**
 	 * The current status of the response (see the return value type description)
 	 * @return Status of the response
@@ -138,77 +259,53 @@ public class WeatherResponse {
 	public STATUS getStatus() {
 		return status;
 	}
-
+	
 	/**
-	 * Get the time of the last update, to protect the server from DDoS
-	 * @return - Time in milliseconds, when the response was last updated
+	 * Get the time of the last update (when the response was received from the server; also for the cached responses)
+	 * @return - Time in milliseconds, when the response was last updated (0 if unknown)
 	 */
 	public long getCreatedDate() {
 		return updatedDate;
 	}
 	
 	/**
-	 * Updates the object's state from the JSON response
-	 * @param responseBody - JSONObject receiver from the VisualCrossing web service
-	 */
-	public void update(JSONObject responseBody) {
-		status = STATUS.OK;
-		SimpleDateFormat dateFormat = new SimpleDateFormat("dd MMMM yyyy hh:mm:ss a", Locale.US);
-		responseBody.put("last_update", dateFormat.format(new Date()));
-		
-		body = responseBody;
-		updatedDate = System.currentTimeMillis();
-		
-		if (service != null) {
-			service.putObject(responseBody.getString("address"), responseBody);
-			service.putString("last_location", responseBody.getString("address"));
-		}
-	}
-	
-	/**
-	 * Same as update(), except does not stop from abusing requests (DDoS attacks) and immediately returns itself.
-	 * Used for updating the object from the Database
-	 * @param responseBody - JSONObject, which was cached in the database
-	 * @return - Itself
+	 * Get the version of the snapshot: the snapshots created later have greater versions
+	 * @return - A positive number, unique for each snapshot
 	 */
-	public WeatherResponse updated(JSONObject responseBody) {
-		status = STATUS.OK;
-		body = responseBody;
-		return this;
+	public long getVersion() {
+		return version;
 	}
 	
 	/**
-	 * At the moment, it simply changes the status to STATUS.FAILURE
-	 * @param e - Exception caught during REST API request
+	 * Get the cause of the FAILURE status
+	 * @return - Optional exception, caught during REST API request (empty, if the response is OK)
 	 */
-	public void update(Exception e) {
-		status = STATUS.FAILURE;
+	public Optional<Exception> getException() {
+		return status == STATUS.FAILURE ? Optional.ofNullable(exception) : Optional.empty();
 	}
 	
 	/**
-	 * Get a string representation of the JSON response body. Use for caching the response to the Database as a String
+	 * Get a string representation of the JSON response body (in the canonical unit group). Use for caching the response to the Database as a String
 	 * @return - Optional, which contains a string representation of the JSON response body (if it is not corrupted/absent)
 	 */
 	public Optional<String> stringify() {
-		try {
-			String result = body.toString();
-			if (result != null) {
-				return Optional.of(result);
-			}
-		} catch (NullPointerException e) {
-			//status = e;
-			log.ifPresent(log -> log.warning("Could not cast response body to string", e));
+		if (!hasBody) {
+			log.ifPresent(log -> log.warning("Could not cast response body to string: response body absent", null));
+			return Optional.empty();
 		}
-		
-		return Optional.empty();
+		return Optional.of(forecast.toJson().toString());
 	}
 	
 	/**
-	 * Optionally set a logger
-	 * @param logger - a {@link WeatherLogger} instance
+	 * Get the binary representation of the response body (see {@link ForecastCodec}; in the canonical unit group). Use for caching the response to the Database
+	 * @return - Optional, which contains the encoded response body (if it is not absent)
 	 */
-	public void setLogger(WeatherLogger logger) {
-		log = Optional.of(logger);
+	public Optional<byte[]> serialize() {
+		if (!hasBody) {
+			log.ifPresent(log -> log.warning("Could not serialize response body: response body absent", null));
+			return Optional.empty();
+		}
+		return Optional.of(ForecastCodec.encode(forecast));
 	}
 	
 	/**
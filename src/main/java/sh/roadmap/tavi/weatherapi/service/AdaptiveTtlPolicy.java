@@ -0,0 +1,172 @@
+package sh.roadmap.tavi.weatherapi.service;
+
+
+import java.time.Clock;
+import java.time.DateTimeException;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import sh.roadmap.tavi.weatherapi.controller.Forecast;
+import sh.roadmap.tavi.weatherapi.tools.PropertiesReader;
+
+/**
+ * The lifetime of a forecast depends on its days, counted at the location of the forecast ("tzoffset" of the response): <br>
+ * - today's forecast changes during the day, so it lives shortly ("cache-ttl-today"); <br>
+ * - the later days live longer, up to "cache-ttl-future" for the day+7 and later; <br>
+ * - the past days (observed weather) live the longest ("cache-ttl-past"). <br>
+ * The forecast never outlives the local midnight, when today becomes yesterday, by more than the lifetime of its new first day. <br>
+ * The keys, which have been read at least "cache-popular-hits" times, live "cache-popular-factor" times longer
+ * (still up to the midnight). Other values live "cache-ttl" (all the lifetimes are in seconds)
+ */
+public class AdaptiveTtlPolicy implements TtlPolicy {
+	
+	private static final int FAR_DAYS = 7; // The days, after which the lifetime does not grow
+	private static final int MAX_TRACKED = 10_000; // The keys, whose reads are counted
+	
+	private long baseTtl = 12 * 60 * 60;
+	private long todayTtl = 60 * 60;
+	private long futureTtl = 12 * 60 * 60;
+	private long pastTtl = 7 * 24 * 60 * 60;
+	private int popularHits = 5;
+	private long popularFactor = 2;
+	
+	private final Clock clock;
+	private final Map<String, AtomicInteger> hits = new ConcurrentHashMap<>();
+	
+	/**
+	 * Creates the policy
+	 * @param props - a {@link PropertiesReader} instance to read the configuration. Optional: "cache-ttl", "cache-ttl-today",
+	 * "cache-ttl-future", "cache-ttl-past" (seconds), "cache-popular-hits", "cache-popular-factor"
+	 */
+	public AdaptiveTtlPolicy(PropertiesReader props) {
+		this(props, Clock.systemUTC());
+	}
+	
+	/**
+	 * Creates the policy
+	 * @param props - a {@link PropertiesReader} instance to read the configuration
+	 * @param clock - The current time
+	 */
+	public AdaptiveTtlPolicy(PropertiesReader props, Clock clock) {
+		this.clock = clock;
+		props.get("cache-ttl").ifPresent(val -> baseTtl = parseCount(val, baseTtl));
+		props.get("cache-ttl-today").ifPresent(val -> todayTtl = parseCount(val, todayTtl));
+		props.get("cache-ttl-future").ifPresent(val -> futureTtl = parseCount(val, futureTtl));
+		props.get("cache-ttl-past").ifPresent(val -> pastTtl = parseCount(val, pastTtl));
+		props.get("cache-popular-hits").ifPresent(val -> popularHits = (int) parseCount(val, popularHits));
+		props.get("cache-popular-factor").ifPresent(val -> popularFactor = parseCount(val, popularFactor));
+	}
+	
+	@Override
+	public long seconds(String key, Optional<Forecast> value) {
+		long factor = isPopular(key) ? popularFactor : 1;
+		return Math.max(1, value.flatMap(forecast -> forecastTtl(forecast, factor)).orElse(baseTtl * factor));
+	}
+	
+	@Override
+	public void hit(String key) {
+		if (hits.size() >= MAX_TRACKED && !hits.containsKey(key)) {
+			hits.clear(); // Start counting anew, rather than track every key ever read
+		}
+		hits.computeIfAbsent(key, k -> new AtomicInteger()).incrementAndGet();
+	}
+	
+	private boolean isPopular(String key) {
+		AtomicInteger count = hits.get(key);
+		return count != null && count.get() >= popularHits;
+	}
+	
+	/**
+	 * The lifetime of the forecast by its first day, which is not past yet
+	 * @param forecast - Some forecast
+	 * @param factor - The multiplier of the lifetime of a popular key
+	 * @return - Seconds, or empty if the forecast has no dates
+	 */
+	private Optional<Long> forecastTtl(Forecast forecast, long factor) {
+		ZonedDateTime now = ZonedDateTime.now(clock.withZone(zoneOf(forecast)));
+		LocalDate today = now.toLocalDate();
+		int datetime = forecast.column("datetime");
+		LocalDate first = null; // The first day from today on
+		boolean dated = false;
+		for (int day = 0; day < forecast.getDays(); day++) {
+			try {
+				LocalDate date = LocalDate.parse(forecast.getText(day, datetime));
+				dated = true;
+				if (!date.isBefore(today) && (first == null || date.isBefore(first))) {
+					first = date;
+				}
+			} catch (DateTimeParseException | NullPointerException e) {
+				// Not a day of the forecast
+			}
+		}
+		if (!dated) {
+			return Optional.empty();
+		}
+		if (first == null) {
+			return Optional.of(pastTtl * factor); // Only the observed weather
+		}
+		int ahead = (int) ChronoUnit.DAYS.between(today, first);
+		long untilMidnight = Duration.between(now, today.plusDays(1).atStartOfDay(now.getZone())).getSeconds();
+		long result = ahead == 0
+				? Math.min(dayTtl(0, factor), untilMidnight)
+				: Math.min(dayTtl(ahead, factor), untilMidnight + dayTtl(ahead - 1, factor)); // The next day is one day closer
+		return Optional.of(result);
+	}
+	
+	/**
+	 * @param ahead - Days from today
+	 * @return - The lifetime of the day, growing from "today" to "future"
+	 */
+	private long dayTtl(int ahead, long factor) {
+		int days = Math.min(ahead, FAR_DAYS);
+		return (todayTtl + (futureTtl - todayTtl) * days / FAR_DAYS) * factor;
+	}
+	
+	/**
+	 * The time zone of the location: "tzoffset" (hours) of the response, or its "timezone"
+	 * @param forecast - Some forecast
+	 * @return - The zone (UTC, if unknown)
+	 */
+	private static ZoneId zoneOf(Forecast forecast) {
+		Optional<Object> offset = forecast.field("tzoffset").filter(Number.class::isInstance);
+		try {
+			if (offset.isPresent()) {
+				return ZoneOffset.ofTotalSeconds((int) Math.round(((Number) offset.get()).doubleValue() * 3600));
+			}
+			Optional<Object> timezone = forecast.field("timezone");
+			if (timezone.isPresent()) {
+				return ZoneId.of(String.valueOf(timezone.get()));
+			}
+		} catch (DateTimeException e) {
+			// Unknown zone
+		}
+		return ZoneOffset.UTC;
+	}
+	
+	/**
+	 * Parses a property value (a positive integer)
+	 * @param value - String value of the property
+	 * @param defaultValue - Returned, if the value is not a positive number
+	 * @return - Parsed number, or the default one
+	 */
+	private static long parseCount(String value, long defaultValue) {
+		try {
+			long count = Long.parseLong(value.trim());
+			if (count > 0) {
+				return count;
+			}
+		} catch (NumberFormatException e) {
+			// The default one
+		}
+		return defaultValue;
+	}
+}
@@ -0,0 +1,315 @@
+package sh.roadmap.tavi.weatherapi.service;
+
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import org.json.JSONObject;
+
+import sh.roadmap.tavi.weatherapi.controller.Forecast;
+import sh.roadmap.tavi.weatherapi.controller.WeatherResponse;
+import sh.roadmap.tavi.weatherapi.logging.WeatherLogger;
+import sh.roadmap.tavi.weatherapi.tools.PropertiesReader;
+
+/**
+ * Caches to Redis while it is healthy, and to the local store (a {@link JsonWeatherService}) while it is not. <br>
+ * Redis is pinged in the background: when it stops replying (or a command fails to connect), the calls are routed
+ * to the local store at once, without waiting for the timeouts; when it replies again, the values, which were stored
+ * locally in the meantime, are written back to Redis, and the calls are routed to Redis again. <br>
+ * While Redis is healthy, the values are also copied to the local store in the background, so the cache stays warm
+ * through the restarts of Redis
+ */
+public class FailoverWeatherService implements IWeatherService {
+	
+	private final RedisWeatherService primary;
+	private final IWeatherService fallback; // Used under its own lock, so that a sequence of calls is atomic
+	
+	private volatile boolean healthy;
+	private volatile Optional<WeatherLogger> log = Optional.empty();
+	
+	// The keys, stored only locally while Redis was down (true - raw bytes, false - a string)
+	private final Map<String, Boolean> missed = new ConcurrentHashMap<>();
+	
+	private long probeInterval = 5; // Seconds between the pings
+	private boolean mirror = true; // Copy the values to the local store while Redis is healthy
+	
+	private final ScheduledExecutorService probes = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "weather-db-probe");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
+	/**
+	 * Creates the service, which switches between Redis and the local store
+	 * @param primary - The Redis service (possibly not connected yet)
+	 * @param fallback - The local store
+	 * @param props - a {@link PropertiesReader} instance to read the configuration. Optional: "db-probe-interval" (seconds),
+	 * "db-mirror" (false not to copy the values to the local store while Redis is healthy)
+	 */
+	public FailoverWeatherService(RedisWeatherService primary, IWeatherService fallback, PropertiesReader props) {
+		this.primary = primary;
+		this.fallback = fallback;
+		props.get("db-probe-interval").ifPresent(val -> {
+			try {
+				probeInterval = Math.max(1, Long.parseLong(val.trim()));
+			} catch (NumberFormatException e) {
+				log.ifPresent(log -> log.warning("Not a number of seconds in the properties: " + val, e));
+			}
+		});
+		props.get("db-mirror").ifPresent(val -> mirror = Boolean.parseBoolean(val.trim()));
+		healthy = primary.getStatus() == DBSTATUS.CONNECTED;
+		probes.scheduleWithFixedDelay(this::probe, probeInterval, probeInterval, TimeUnit.SECONDS);
+	}
+	
+	/**
+	 * Pings Redis; writes the missed values back, when it has recovered
+	 */
+	private void probe() {
+		try {
+			if (!primary.ping()) {
+				down();
+				return;
+			}
+			if (!missed.isEmpty() && !writeBack()) {
+				down();
+				return;
+			}
+			if (!healthy) {
+				healthy = true;
+				log.ifPresent(log -> log.info("Redis is available again: caching to Redis"));
+				if (!missed.isEmpty()) {
+					writeBack(); // Stored locally, while the write back was going on
+				}
+			}
+		} catch (RuntimeException e) {
+			log.ifPresent(log -> log.warning("Could not check the Redis connection", e));
+		}
+	}
+	
+	/**
+	 * Routes the calls to the local store
+	 */
+	private void down() {
+		if (healthy) {
+			healthy = false;
+			log.ifPresent(log -> log.warning("Redis is not available: caching to the local store", null));
+		}
+	}
+	
+	/**
+	 * Writes the values, which were stored only locally, to Redis
+	 * @return - true if all of them have been written
+	 */
+	private boolean writeBack() {
+		Map<String, Boolean> pending = new HashMap<>(missed);
+		List<String> byteKeys = pending.entrySet().stream().filter(Map.Entry::getValue).map(Map.Entry::getKey).collect(Collectors.toList());
+		Map<String, byte[]> values;
+		Map<String, String> strings = new HashMap<>();
+		synchronized (fallback) {
+			values = fallback.getMany(byteKeys);
+			pending.forEach((key, bytes) -> {
+				if (!bytes) {
+					fallback.getString(key).ifPresent(value -> strings.put(key, value));
+				}
+			});
+		}
+		primary.putMany(values);
+		strings.forEach(primary::putString);
+		if (failed()) {
+			return false;
+		}
+		pending.forEach(missed::remove); // Unless stored locally again in the meantime
+		log.ifPresent(log -> log.info("Written back to Redis: " + pending.size() + " keys"));
+		return true;
+	}
+	
+	/**
+	 * @return - true if the last command to Redis could not connect
+	 */
+	private boolean failed() {
+		return primary.getStatus() == DBSTATUS.FAILED_TO_CONNECT;
+	}
+	
+	/**
+	 * Reads from Redis, or from the local store (if Redis is down)
+	 * @param <T> - Type of the result
+	 * @param read - The read operation
+	 * @return - The result of the operation
+	 */
+	private <T> T read(Function<IWeatherService, T> read) {
+		if (healthy) {
+			T result = read.apply(primary);
+			if (!failed()) {
+				return result;
+			}
+			down();
+		}
+		synchronized (fallback) {
+			return read.apply(fallback);
+		}
+	}
+	
+	/**
+	 * Writes to Redis, or to the local store (if Redis is down; the keys are remembered to be written back)
+	 * @param write - The write operation
+	 * @param keys - The written keys (true - raw bytes, false - a string)
+	 * @return - The result of the operation
+	 */
+	private boolean write(Function<IWeatherService, Boolean> write, Map<String, Boolean> keys) {
+		if (healthy) {
+			boolean result = write.apply(primary);
+			if (!failed()) {
+				if (mirror) {
+					copy(write);
+				}
+				return result;
+			}
+			down();
+		}
+		synchronized (fallback) {
+			missed.putAll(keys);
+			return write.apply(fallback);
+		}
+	}
+	
+	/**
+	 * Copies the values to the local store in the background
+	 * @param write - The write operation
+	 */
+	private void copy(Function<IWeatherService, Boolean> write) {
+		try {
+			probes.execute(() -> {
+				synchronized (fallback) {
+					write.apply(fallback);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// Disposed
+		}
+	}
+	
+	@Override
+	public WeatherResponse update(String key, WeatherResponse fromResponse) {
+		write(service -> {
+			service.update(key, fromResponse);
+			return true;
+		}, Map.of(key, true, "last_request", false));
+		return fromResponse;
+	}
+	
+	@Override
+	public Optional<String> getString(String key) {
+		return read(service -> service.getString(key));
+	}
+	
+	@Override
+	public Optional<JSONObject> getObject(String key) {
+		return read(service -> service.getObject(key));
+	}
+	
+	@Override
+	public Optional<byte[]> getBytes(String key) {
+		return read(service -> service.getBytes(key));
+	}
+	
+	@Override
+	public Map<String, byte[]> getMany(Collection<String> keys) {
+		return read(service -> service.getMany(keys));
+	}
+	
+	@Override
+	public Optional<Forecast> getForecast(String key) {
+		return read(service -> service.getForecast(key));
+	}
+	
+	@Override
+	public Optional<Forecast> getDay(String key, int day) {
+		return read(service -> service.getDay(key, day));
+	}
+	
+	@Override
+	public Optional<String> getElement(String key, int day, String element) {
+		return read(service -> service.getElement(key, day, element));
+	}
+	
+	@Override
+	public void setLogger(WeatherLogger logger) {
+		log = Optional.of(logger);
+		primary.setLogger(logger);
+		synchronized (fallback) {
+			fallback.setLogger(logger);
+		}
+	}
+	
+	@Override
+	public void setTtlPolicy(TtlPolicy policy) {
+		primary.setTtlPolicy(policy);
+		synchronized (fallback) {
+			fallback.setTtlPolicy(policy);
+		}
+	}
+	
+	@Override
+	public void setInvalidationListener(InvalidationListener listener) {
+		primary.setInvalidationListener(listener); // The local store is not shared
+	}
+	
+	@Override
+	public boolean putString(String key, String value) {
+		return write(service -> service.putString(key, value), Map.of(key, false));
+	}
+	
+	@Override
+	public boolean putObject(String key, JSONObject value) {
+		return write(service -> service.putObject(key, value), Map.of(key, false));
+	}
+	
+	@Override
+	public boolean putBytes(String key, byte[] value) {
+		return write(service -> service.putBytes(key, value), Map.of(key, true));
+	}
+	
+	@Override
+	public boolean putMany(Map<String, byte[]> values) {
+		return write(service -> service.putMany(values), values.keySet().stream().collect(Collectors.toMap(key -> key, key -> true)));
+	}
+	
+	@Override
+	public boolean remove(Collection<String> keys) {
+		missed.keySet().removeAll(keys); // Nothing to write back
+		return write(service -> service.remove(keys), Map.of());
+	}
+	
+	@Override
+	public void dispose() {
+		probes.shutdown();
+		try {
+			probes.awaitTermination(probeInterval, TimeUnit.SECONDS); // Let the copies finish
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		primary.dispose();
+		synchronized (fallback) {
+			fallback.dispose();
+		}
+	}
+	
+	/**
+	 * @return - CONNECTED while caching to Redis, IDLE while caching to the local store
+	 */
+	@Override
+	public DBSTATUS getStatus() {
+		return healthy ? DBSTATUS.CONNECTED : DBSTATUS.IDLE;
+	}
+
+}
@@ -1,19 +1,23 @@
 package sh.roadmap.tavi.weatherapi.service;
 
+import java.util.Collection;
+import java.util.Map;
 import java.util.Optional;
 
 import org.json.JSONObject;
 
+import sh.roadmap.tavi.weatherapi.controller.Forecast;
 import sh.roadmap.tavi.weatherapi.controller.WeatherResponse;
 import sh.roadmap.tavi.weatherapi.logging.WeatherLogger;
 
 public interface IWeatherService {
 	/**
-	 * Automatically stores the response in the DB
+	 * Automatically stores the response in the DB in the binary format (and remembers its key as the "last_request")
+	 * @param key - Key to store the response to (the cache key of the request, see {@link sh.roadmap.tavi.weatherapi.controller.RequestKey#toCacheKey()})
 	 * @param fromResponse - WeatherResponse with all the data to store (last update, response body, etc.)
 	 * @return - The "fromResponse" itself again
 	 */
-	public WeatherResponse update(WeatherResponse fromResponse);
+	public WeatherResponse update(String key, WeatherResponse fromResponse);
 	
 	/**
 	 * Get a raw string from the DB
@@ -29,12 +33,64 @@ public interface IWeatherService {
 	 */
 	public Optional<JSONObject> getObject(String key);
 	
+	/**
+	 * Get raw bytes from the DB
+	 * @param key - Key, corresponding to the desired value
+	 * @return - Optional, containing the value (if could retrieve)
+	 */
+	public Optional<byte[]> getBytes(String key);
+	
+	/**
+	 * Get raw bytes of several keys from the DB at once (with as few round trips as the DB allows)
+	 * @param keys - Keys, corresponding to the desired values
+	 * @return - The values of the keys, which could be retrieved (the absent keys are left out)
+	 */
+	public Map<String, byte[]> getMany(Collection<String> keys);
+	
+	/**
+	 * Get a cached response body from the DB, decoded with {@link sh.roadmap.tavi.weatherapi.controller.ForecastCodec}
+	 * (the bodies, cached as JSON by the older versions, are still read)
+	 * @param key - Key, corresponding to the desired value
+	 * @return - Optional Forecast (if could retrieve and decode the value)
+	 */
+	public Optional<Forecast> getForecast(String key);
+	
+	/**
+	 * Get one day of a cached response body from the DB (only the day is read, if the DB allows it)
+	 * @param key - Key of the response body
+	 * @param day - The day (starting from 0)
+	 * @return - Optional one-day Forecast without the top-level values (empty, if there is no such response or day)
+	 */
+	public Optional<Forecast> getDay(String key, int day);
+	
+	/**
+	 * Get one element of a day of a cached response body from the DB (only the element is read, if the DB allows it)
+	 * @param key - Key of the response body
+	 * @param day - The day (starting from 0)
+	 * @param element - Name of the element (temp, conditions, etc.)
+	 * @return - Optional text value of the element, in the canonical unit group (empty, if there is no such response, day or element)
+	 */
+	public Optional<String> getElement(String key, int day, String element);
+	
 	/**
 	 * Optionally set a logger
 	 * @param logger - a {@link WeatherLogger} instance
 	 */
 	public void setLogger(WeatherLogger logger);
 	
+	/**
+	 * Set the lifetime of the stored values (by default, every value lives 12 hours)
+	 * @param policy - a {@link TtlPolicy} instance
+	 */
+	public void setTtlPolicy(TtlPolicy policy);
+	
+	/**
+	 * Set the listener of the values, which are changed by other instances of the application
+	 * (only a database, shared by several instances, tells about them)
+	 * @param listener - an {@link InvalidationListener} instance
+	 */
+	public void setInvalidationListener(InvalidationListener listener);
+	
 	/**
 	 * Store a String value in the DB (if connected)
 	 * @param key - Key to store the value to
@@ -51,6 +107,28 @@ public interface IWeatherService {
 	 */
 	public boolean putObject(String key, JSONObject value);
 	
+	/**
+	 * Store raw bytes in the DB (if connected)
+	 * @param key - Key to store the value to
+	 * @param value - Value to store to the DB
+	 * @return - true if connected to the DB, false otherwise
+	 */
+	public boolean putBytes(String key, byte[] value);
+	
+	/**
+	 * Store raw bytes of several keys in the DB at once (if connected; with as few round trips as the DB allows)
+	 * @param values - Values to store to the DB, by their keys
+	 * @return - true if connected to the DB, false otherwise
+	 */
+	public boolean putMany(Map<String, byte[]> values);
+	
+	/**
+	 * Remove the values of several keys from the DB (if connected), e.g. the ones, which could not be decoded
+	 * @param keys - Keys of the values to remove
+	 * @return - true if connected to the DB, false otherwise
+	 */
+	public boolean remove(Collection<String> keys);
+	
 	/**
 	 * Closes the connection to the Database (if it was open)
 	 */
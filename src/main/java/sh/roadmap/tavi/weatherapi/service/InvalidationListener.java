@@ -0,0 +1,22 @@
+package sh.roadmap.tavi.weatherapi.service;
+
+
+import java.util.Collection;
+
+/**
+ * Told about the values, which have been changed by other instances of the application (sharing the same database),
+ * so that their copies in memory are dropped (see {@link IWeatherService#setInvalidationListener(InvalidationListener)})
+ */
+public interface InvalidationListener {
+	
+	/**
+	 * The values have been changed by another instance
+	 * @param keys - Keys of the values
+	 */
+	public void invalidated(Collection<String> keys);
+	
+	/**
+	 * Some changes could have been missed (the connection to the database was lost for a while), so any value may be changed
+	 */
+	public void invalidatedAll();
+}
@@ -3,25 +3,44 @@ package sh.roadmap.tavi.weatherapi.service;
 import java.util.*;
 import java.io.*;
 import java.nio.file.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.json.*;
 
+import sh.roadmap.tavi.weatherapi.controller.Forecast;
+import sh.roadmap.tavi.weatherapi.controller.ForecastCodec;
 import sh.roadmap.tavi.weatherapi.controller.WeatherResponse;
 import sh.roadmap.tavi.weatherapi.logging.WeatherLogger;
 
+/**
+ * Caches to a JSON file. The service may be used by several threads at once (every call holds the lock of the service). <br>
+ * The values are kept in memory; the file is rewritten in the background (only if changed since the last save) and on dispose
+ */
 public class JsonWeatherService implements IWeatherService {
 	
-	private static long refreshRate = 12 * 60 * 60 * 1000;
+	private static long refreshRate = 12 * 60 * 60 * 1000; // For the keys without their own lifetime
+	private static final long SAVE_INTERVAL = 30; // Seconds between the saves of the file
 	
 	private Path path;
 	
 	private JSONObject body = new JSONObject();
 	private JSONObject timestamps = new JSONObject();
+	private JSONObject expires = new JSONObject(); // Time (in milliseconds), when the key expires
 	
 	// Used for clearing the old keys at real time
 	private RefreshService refreshService = new RefreshService(this);
 	
+	private boolean changed; // Since the last save
+	private final ScheduledExecutorService saver = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "weather-json-save");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
 	private Optional<WeatherLogger> log = Optional.empty();
+	private TtlPolicy ttl = TtlPolicy.fixed(refreshRate / 1000);
 	// Default status is reset if initialization (via constructor) successful
 	private DBSTATUS status = DBSTATUS.FAILED_TO_CONNECT;
 	
@@ -51,6 +70,10 @@ public class JsonWeatherService implements IWeatherService {
 					body = temp.getJSONObject("body");
 				}
 				
+				if (temp.has("expires")) {
+					expires = temp.getJSONObject("expires");
+				}
+				
 				refresh(System.currentTimeMillis());
 				
 			} catch (JSONException e) {
@@ -60,39 +83,41 @@ public class JsonWeatherService implements IWeatherService {
 		}
 		
 		status = DBSTATUS.IDLE;
+		saver.scheduleWithFixedDelay(this::save, SAVE_INTERVAL, SAVE_INTERVAL, TimeUnit.SECONDS);
 	}
 
 	@Override
-	public WeatherResponse update(WeatherResponse fromResponse) {
+	public synchronized WeatherResponse update(String key, WeatherResponse fromResponse) {
 		try {
-			String address = fromResponse.get("address", String.class).get();
-			String response = fromResponse.stringify().get();
-			body.put("last_location", address); // Last request location
-			body.put(address, response); // Last request itself
+			byte[] response = fromResponse.serialize().get();
+			putString("last_request", key); // Last request key
+			putBytes(key, response); // Last request itself
 		} catch (NoSuchElementException e) {
-			log.ifPresent(log -> log.warning("Could not update the JSON service body from response: no address value", e));
+			log.ifPresent(log -> log.warning("Could not update the JSON service body from response: no response body", e));
 			status = DBSTATUS.FAILED_TO_UPDATE;
 		}
 		return fromResponse;
 	}
 
 	@Override
-	public Optional<String> getString(String key) {
+	public synchronized Optional<String> getString(String key) {
 		refreshService.update();
 		
-		if (body.has(key)) {
+		if (live(key)) {
+			ttl.hit(key);
 			return Optional.of(body.getString(key));
 		}
 		return Optional.empty();
 	}
 
 	@Override
-	public Optional<JSONObject> getObject(String key) {
+	public synchronized Optional<JSONObject> getObject(String key) {
 		refreshService.update();
 		
-		if (body.has(key)) {
+		if (live(key)) {
 			try {
 				JSONObject result = body.getJSONObject(key);
+				ttl.hit(key);
 				return Optional.of(result);
 			} catch (JSONException e) {
 				log.ifPresent(log -> log.warning("(JSONService) Key is not a JSONObject: " + key, e));
@@ -102,44 +127,164 @@ public class JsonWeatherService implements IWeatherService {
 	}
 
 	@Override
-	public void setLogger(WeatherLogger logger) {
+	public synchronized Optional<byte[]> getBytes(String key) {
+		refreshService.update();
+		
+		// Binary values are stored as Base64 strings (not to escape them in the JSON file)
+		if (live(key) && body.opt(key) instanceof String) {
+			try {
+				byte[] result = Base64.getDecoder().decode(body.getString(key));
+				ttl.hit(key);
+				return Optional.of(result);
+			} catch (IllegalArgumentException e) {
+				log.ifPresent(log -> log.warning("(JSONService) Key is not a binary value: " + key, e));
+			}
+		}
+		return Optional.empty();
+	}
+	
+	@Override
+	public synchronized Map<String, byte[]> getMany(Collection<String> keys) {
+		Map<String, byte[]> result = new HashMap<>();
+		keys.forEach(key -> getBytes(key).ifPresent(value -> result.put(key, value)));
+		return result;
+	}
+	
+	@Override
+	public synchronized Optional<Forecast> getForecast(String key) {
+		refreshService.update();
+		
+		if (live(key) && body.optJSONObject(key) != null) {
+			return getObject(key).map(Forecast::of); // Cached as JSON by the older versions
+		}
+		Optional<byte[]> value = getBytes(key);
+		if (value.isPresent()) {
+			try {
+				return Optional.of(ForecastCodec.decode(value.get()));
+			} catch (IOException e) {
+				log.ifPresent(log -> log.warning("(JSONService) Could not decode the cached forecast: " + key, e));
+			}
+		}
+		return Optional.empty();
+	}
+	
+	@Override
+	public synchronized Optional<Forecast> getDay(String key, int day) {
+		return getForecast(key)
+				.filter(forecast -> day >= 0 && day < forecast.getDays())
+				.map(forecast -> forecast.slice(day, day + 1).withoutFields());
+	}
+	
+	@Override
+	public synchronized Optional<String> getElement(String key, int day, String element) {
+		return getDay(key, day).map(forecast -> forecast.getText(0, forecast.column(element)));
+	}
+	
+	@Override
+	public synchronized void setLogger(WeatherLogger logger) {
 		log = Optional.of(logger);
 		logger.info("Json service is set up");
 	}
+	
+	@Override
+	public synchronized void setTtlPolicy(TtlPolicy policy) {
+		ttl = policy;
+	}
+	
+	@Override
+	public synchronized void setInvalidationListener(InvalidationListener listener) {
+		// The file is not shared with other instances
+	}
 
 	@Override
-	public boolean putString(String key, String value) {
+	public synchronized boolean putString(String key, String value) {
 		refreshService.update();
 		
 		if (body == null) {
 			return false;
 		}
 		
+		long time = System.currentTimeMillis();
 		body.put(key, value);
-		timestamps.put(key, System.currentTimeMillis());
+		timestamps.put(key, time);
+		expires.put(key, time + ttl.seconds(key, Optional.empty()) * 1000);
+		changed = true;
 		return true;
 	}
 
 	@Override
-	public boolean putObject(String key, JSONObject value) {
+	public synchronized boolean putObject(String key, JSONObject value) {
 		refreshService.update();
 		
 		if (body == null) {
 			return false;
 		}
 		
+		long time = System.currentTimeMillis();
 		body.put(key, value);
-		timestamps.put(key, System.currentTimeMillis());
+		timestamps.put(key, time);
+		expires.put(key, time + ttl.seconds(key, Optional.empty()) * 1000);
+		changed = true;
 		return true;
 	}
 
 	@Override
-	public void dispose() {
+	public synchronized boolean putBytes(String key, byte[] value) {
+		refreshService.update();
+		
+		if (body == null) {
+			return false;
+		}
+		
+		long time = System.currentTimeMillis();
+		body.put(key, Base64.getEncoder().encodeToString(value));
+		timestamps.put(key, time);
+		expires.put(key, time + ttl.seconds(key, value) * 1000);
+		changed = true;
+		return true;
+	}
+	
+	@Override
+	public synchronized boolean putMany(Map<String, byte[]> values) {
+		refreshService.update();
+		
+		if (body == null) {
+			return false;
+		}
+		
+		long time = System.currentTimeMillis();
+		values.forEach((key, value) -> {
+			body.put(key, Base64.getEncoder().encodeToString(value));
+			timestamps.put(key, time);
+			expires.put(key, time + ttl.seconds(key, value) * 1000);
+		});
+		changed = true;
+		return true;
+	}
+	
+	@Override
+	public synchronized boolean remove(Collection<String> keys) {
+		if (body == null) {
+			return false;
+		}
+		
+		keys.forEach(key -> {
+			body.remove(key);
+			timestamps.remove(key);
+			expires.remove(key);
+		});
+		changed = true;
+		return true;
+	}
+	
+	@Override
+	public synchronized void dispose() {
+		saver.shutdown();
 		save();
 	}
 
 	@Override
-	public DBSTATUS getStatus() {
+	public synchronized DBSTATUS getStatus() {
 		return status;
 	}
 	
@@ -154,9 +299,10 @@ public class JsonWeatherService implements IWeatherService {
 		JSONObject obj = new JSONObject(body.toString());
 		
 		obj.keys().forEachRemaining(key -> {
-			if (timestamps.has(key) && time - timestamps.getLong(key) > JsonWeatherService.refreshRate) {
+			if (expired(key, time)) {
 				body.remove(key);
 				timestamps.remove(key);
+				expires.remove(key);
 			}
 		});
 		
@@ -164,23 +310,60 @@ public class JsonWeatherService implements IWeatherService {
 		
 		if (count > 0) {
 			log.ifPresent(log -> log.info("Json service performed timed clean-up of old keys; removed: " + count));
-			save();
+			changed = true;
 		} else {
 			log.ifPresent(log -> log.info("Json service clean-up report: nothing to clean"));
 		}
 	}
 	
 	/**
-	 * Save the {@link JsonWeatherService.body} to a file on the hard drive
+	 * Checks whether the key has outlived its lifetime (see {@link TtlPolicy})
+	 * @param key - Some key
+	 * @param time - Current time in milliseconds
+	 * @return - true if the key has expired
+	 */
+	private boolean expired(String key, long time) {
+		if (expires.has(key)) {
+			return time >= expires.getLong(key);
+		}
+		return timestamps.has(key) && time - timestamps.getLong(key) > JsonWeatherService.refreshRate; // Stored by the older versions
+	}
+	
+	/**
+	 * Checks whether the key is present and has not expired yet (the expired key is removed at once,
+	 * so that a forecast is not served after its day is over)
+	 * @param key - Some key
+	 * @return - true if the value of the key may be read
 	 */
-	private void save() {
+	private boolean live(String key) {
+		if (!body.has(key)) {
+			return false;
+		}
+		if (expired(key, System.currentTimeMillis())) {
+			body.remove(key);
+			timestamps.remove(key);
+			expires.remove(key);
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Save the {@link JsonWeatherService.body} to a file on the hard drive (if it has changed since the last save)
+	 */
+	private synchronized void save() {
+		if (!changed) {
+			return;
+		}
 		try (BufferedWriter out = Files.newBufferedWriter(path)) {
 			JSONObject temp = new JSONObject();
 			temp.put("timestamps", timestamps);
+			temp.put("expires", expires);
 			temp.put("body", body);
 			
 			String result = temp.toString();
 			out.write(result);
+			changed = false;
 		} catch (IOException e) {
 			log.ifPresent(log -> log.warning("JSON Service was not able to save its body to a file", e));
 		}
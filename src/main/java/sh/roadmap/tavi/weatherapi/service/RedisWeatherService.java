@@ -1,51 +1,147 @@
 package sh.roadmap.tavi.weatherapi.service;
 
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import redis.clients.jedis.Jedis;
+import redis.clients.jedis.AbstractPipeline;
+import redis.clients.jedis.AbstractTransaction;
+import redis.clients.jedis.Connection;
+import redis.clients.jedis.ConnectionPool;
+import redis.clients.jedis.ConnectionPoolConfig;
+import redis.clients.jedis.DefaultJedisClientConfig;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.JedisCluster;
+import redis.clients.jedis.JedisPooled;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.PipeliningBase;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.UnifiedJedis;
 import redis.clients.jedis.exceptions.InvalidURIException;
 import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.jedis.util.JedisURIHelper;
+import sh.roadmap.tavi.weatherapi.controller.Forecast;
+import sh.roadmap.tavi.weatherapi.controller.ForecastCodec;
 import sh.roadmap.tavi.weatherapi.controller.WeatherResponse;
 import sh.roadmap.tavi.weatherapi.logging.WeatherLogger;
 import sh.roadmap.tavi.weatherapi.tools.PropertiesReader;
 
 /**
- * Basic API for working with a Redis database
+ * Basic API for working with a Redis database. <br>
+ * The connections are borrowed from a pool for every command (or pipeline), so the service may be used
+ * by several threads at once; a broken connection is dropped from the pool and replaced with a new one. <br>
+ * With "db-layout=hash" the responses (see {@link #update(String, WeatherResponse)} and {@link #putMany(Map)}) are stored as Redis hashes:
+ * "fields" - the top-level values, "day:N" - each day, "day:N:element" - the text of each element of the day,
+ * so a day or an element is read without transferring and decoding the whole response. <br>
+ * With "db-nodes" (a list of the seed nodes) the keys are spread over several nodes: "db-mode=cluster" connects
+ * to a Redis Cluster (the keys are routed by their slots), "db-mode=sharded" shards the keys over independent nodes
+ * by consistent hashing (see {@link ShardRing}). The batches are split by the nodes. <br>
+ * Several instances of the application may share the database: every write of a response (or its days) is published
+ * to the "db-invalidation-channel", and the changes of the other instances are passed to the {@link InvalidationListener}
+ * (the subscription holds one connection of the pool)
  */
 public class RedisWeatherService implements IWeatherService {
 	
-	private Optional<WeatherLogger> log = Optional.empty();
+	private static final int TTL_SECONDS = 60 * 60 * 12; // The values expire in 12 hours (unless another TtlPolicy is set)
 	
-	private Jedis redis;
-	private String ip; // Starts with "http://..."
+	// The fields of a response, stored as a hash
+	private static final String FIELDS = "fields";
+	private static final String DAY = "day:";
+	
+	private static final String LAST_REQUEST = "last_request";
+	
+	private static final long RESUBSCRIBE_DELAY = 5000; // Milliseconds between the attempts to subscribe again
+	
+	private volatile Optional<WeatherLogger> log = Optional.empty();
+	private volatile TtlPolicy ttl = TtlPolicy.fixed(TTL_SECONDS);
+	
+	private volatile UnifiedJedis redis; // A single node or a cluster (null if sharded)
+	private volatile ShardRing shards; // The nodes of the client-side sharding (null otherwise)
+	private String ip; // Starts with "redis://..."
 	private String port; // Redis port
+	private List<String> seeds = new ArrayList<>(); // The seed nodes ("host:port" or "redis://...")
+	private String mode = "single"; // "single", "cluster" or "sharded"
 	
-	private DBSTATUS status = DBSTATUS.NOT_INITIALIZED;
+	private int poolSize = 8; // Maximum connections
+	private int connectTimeout = 2000; // Milliseconds
+	private int socketTimeout = 2000; // Milliseconds (reading the reply)
+	private int poolWait = 2000; // Milliseconds to wait for a free connection
+	private boolean testOnBorrow = false; // The idle connections are checked anyway
+	private boolean hashLayout = false; // Store the responses as hashes
+	
+	private boolean invalidation = true; // Publish the writes, so that the other instances drop their copies
+	private String channel = "weather:invalidations";
+	private final String instanceId = UUID.randomUUID().toString(); // Not to drop the own writes
+	private volatile InvalidationListener listener;
+	private volatile JedisPubSub subscription;
+	private Thread subscriber;
+	private volatile boolean disposed;
+	
+	private volatile DBSTATUS status = DBSTATUS.NOT_INITIALIZED;
 	
 	/**
 	 * Creates the service working with Redis
 	 * @param props - a {@link PropertiesReader} instance to read the configuration.
-	 * ".properties" file must contain such info as "db-ip" and "db-port" for establishing connection
+	 * ".properties" file must contain such info as "db-ip" and "db-port" for establishing connection. <br>
+	 * Optional: "db-pool-size" (connections), "db-connect-timeout", "db-socket-timeout", "db-pool-wait" (milliseconds),
+	 * "db-test-on-borrow" (true to check every connection before the use), "db-layout" ("string" or "hash"),
+	 * "db-nodes" (comma-separated seed nodes, instead of "db-ip" and "db-port"), "db-mode" ("single", "cluster" or "sharded"),
+	 * "db-invalidation" (false not to publish the writes), "db-invalidation-channel"
 	 */
 	public RedisWeatherService(PropertiesReader props) {
 		props.get("db-ip").ifPresent(val -> ip = val);
 		props.get("db-port").ifPresent(val -> port = val);
-		if (ip != null && port != null) {
+		props.get("db-pool-size").ifPresent(val -> poolSize = parseCount(val, poolSize));
+		props.get("db-connect-timeout").ifPresent(val -> connectTimeout = parseCount(val, connectTimeout));
+		props.get("db-socket-timeout").ifPresent(val -> socketTimeout = parseCount(val, socketTimeout));
+		props.get("db-pool-wait").ifPresent(val -> poolWait = parseCount(val, poolWait));
+		props.get("db-test-on-borrow").ifPresent(val -> testOnBorrow = Boolean.parseBoolean(val.trim()));
+		props.get("db-layout").ifPresent(val -> hashLayout = val.trim().equalsIgnoreCase("hash"));
+		props.get("db-mode").ifPresent(val -> mode = val.trim().toLowerCase());
+		props.get("db-invalidation").ifPresent(val -> invalidation = Boolean.parseBoolean(val.trim()));
+		props.get("db-invalidation-channel").filter(val -> !val.isBlank()).ifPresent(val -> channel = val.trim());
+		props.get("db-nodes").ifPresent(val -> {
+			for (String node : val.split(",")) {
+				if (!node.isBlank()) {
+					seeds.add(node.trim());
+				}
+			}
+		});
+		if (seeds.isEmpty() && ip != null && port != null) {
+			seeds.add(ip + ":" + port);
+		}
+		if (!seeds.isEmpty()) {
 			try {
-				redis = new Jedis(ip + ":" + port);
-				status = DBSTATUS.CONNECTED;
-			} catch (InvalidURIException e) {
+				connect();
+				if (!ping()) { // Connects at once, to tell the status
+					throw new JedisConnectionException("Could not connect to " + seeds);
+				}
+			} catch (IllegalArgumentException | InvalidURIException e) {
 				//lastException = e;
 				status = DBSTATUS.FAILED_TO_CONNECT;
 				log.ifPresent(log -> log.warning("Could not connect to DB: InvalidURI", e));
-			} catch (JedisConnectionException e) {
+			} catch (JedisException e) {
 				//lastException = e;
-				status = DBSTATUS.FAILED_TO_CONNECT;
+				status = DBSTATUS.FAILED_TO_CONNECT; // The pool keeps trying to connect on every command (see also ping())
 				log.ifPresent(log -> log.warning("Could not connect to DB: Connection exception", e));
 			}
 		} else {
@@ -53,18 +149,247 @@ public class RedisWeatherService implements IWeatherService {
 		}
 	}
 	
+	/**
+	 * Creates the connection pools of the nodes (see the "db-mode" property)
+	 */
+	private synchronized void connect() {
+		switch (mode) {
+		case "cluster":
+			Set<HostAndPort> clusterSeeds = new HashSet<>();
+			seeds.forEach(node -> clusterSeeds.add(JedisURIHelper.getHostAndPort(uri(node))));
+			URI first = uri(seeds.get(0)); // The credentials of the cluster
+			redis = new JedisCluster(clusterSeeds, DefaultJedisClientConfig.builder()
+					.connectionTimeoutMillis(connectTimeout)
+					.socketTimeoutMillis(socketTimeout)
+					.user(JedisURIHelper.getUser(first))
+					.password(JedisURIHelper.getPassword(first))
+					.build(), 5, poolConfig());
+			break;
+		case "sharded":
+			Map<String, UnifiedJedis> shardNodes = new LinkedHashMap<>();
+			for (String node : seeds) {
+				URI uri = uri(node);
+				shardNodes.put(JedisURIHelper.getHostAndPort(uri).toString(), new JedisPooled(poolConfig(), uri, connectTimeout, socketTimeout));
+			}
+			shards = new ShardRing(shardNodes);
+			break;
+		default:
+			redis = new JedisPooled(poolConfig(), uri(seeds.get(0)), connectTimeout, socketTimeout);
+		}
+	}
+	
+	/**
+	 * @param node - "host:port" or "redis://..."
+	 * @return - The URI of the node
+	 */
+	private static URI uri(String node) {
+		return URI.create(node.contains("://") ? node : "redis://" + node);
+	}
+	
+	/**
+	 * Finds the node of the key (in a cluster - the cluster itself, which routes the key by its slot)
+	 * @param key - Some key
+	 * @return - The node, or null if not connected
+	 */
+	private UnifiedJedis node(String key) {
+		return shards != null ? shards.node(key) : redis;
+	}
+	
+	/**
+	 * Splits the keys by their nodes
+	 * @param keys - Some keys
+	 * @return - The keys of every node
+	 * @throws NullPointerException - If not connected
+	 */
+	private Map<UnifiedJedis, List<String>> byNode(Collection<String> keys) {
+		if (shards != null) {
+			return shards.split(keys);
+		}
+		Map<UnifiedJedis, List<String>> result = new HashMap<>();
+		result.put(redis, new ArrayList<>(keys));
+		return result;
+	}
+	
+	/**
+	 * @return - All the nodes (a cluster is one node), or none if not connected
+	 */
+	private List<UnifiedJedis> nodes() {
+		return shards != null ? shards.nodes() : redis == null ? List.of() : List.of(redis);
+	}
+	
+	/**
+	 * @return - The node of the invalidation channel (in a cluster - any node, the messages are sent to all of them),
+	 * or null if not connected
+	 */
+	private UnifiedJedis channelNode() {
+		return shards != null ? shards.nodes().get(0) : redis;
+	}
+	
+	/**
+	 * Tells the other instances, that the values have been changed (the values are written anyway, if it fails)
+	 * @param keys - Keys of the values
+	 * @throws NullPointerException - If not connected
+	 */
+	private void publish(Collection<String> keys) {
+		if (!invalidation || keys.isEmpty()) {
+			return;
+		}
+		try {
+			channelNode().publish(channel, invalidationOf(keys));
+		} catch (JedisException e) {
+			log.ifPresent(log -> log.warning("Could not publish the invalidation of " + keys.size() + " keys", e));
+		}
+	}
+	
+	/**
+	 * Whether the invalidation may be sent in the same round trip as the writes to the node
+	 * (the channel is on that node; not in a cluster, whose pipelines route the commands by their keys)
+	 * @param node - The node of the writes
+	 * @param keys - Keys of the written values
+	 * @return - true if the invalidation is to be added to the commands of the node (see {@link #invalidationOf(Collection)})
+	 */
+	private boolean publishesWith(UnifiedJedis node, Collection<String> keys) {
+		return invalidation && !keys.isEmpty() && node == channelNode() && !(node instanceof JedisCluster);
+	}
+	
+	/**
+	 * @param keys - Keys of the written values
+	 * @return - The message of the invalidation channel
+	 */
+	private String invalidationOf(Collection<String> keys) {
+		return instanceId + "\n" + String.join("\n", keys);
+	}
+	
+	/**
+	 * Listens to the invalidation channel until disposed (subscribes again, if the connection is lost)
+	 */
+	private void listen() {
+		boolean broken = false;
+		while (!disposed) {
+			boolean missed = broken; // The changes could have been published, while not subscribed
+			JedisPubSub pubSub = new JedisPubSub() {
+				@Override
+				public void onSubscribe(String channel, int subscribedChannels) {
+					if (missed) {
+						listener.invalidatedAll();
+					}
+				}
+				
+				@Override
+				public void onMessage(String channel, String message) {
+					List<String> lines = List.of(message.split("\n"));
+					if (lines.size() > 1 && !lines.get(0).equals(instanceId)) {
+						listener.invalidated(lines.subList(1, lines.size()));
+					}
+				}
+			};
+			subscription = pubSub;
+			try {
+				channelNode().subscribe(pubSub, channel); // Blocks, while subscribed
+			} catch (NullPointerException e) {
+				// Not connected yet
+			} catch (JedisException e) {
+				if (!disposed) {
+					log.ifPresent(log -> log.warning("Lost the subscription to the invalidations, subscribing again", e));
+				}
+			} catch (RuntimeException e) {
+				log.ifPresent(log -> log.warning("Could not handle an invalidation", e));
+			}
+			broken = true;
+			try {
+				Thread.sleep(RESUBSCRIBE_DELAY);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Configures the connection pool: its size and the health checks of the connections
+	 * @return - The configuration of the pool
+	 */
+	private ConnectionPoolConfig poolConfig() {
+		ConnectionPoolConfig config = new ConnectionPoolConfig();
+		config.setMaxTotal(poolSize);
+		config.setMaxIdle(poolSize);
+		config.setMinIdle(0);
+		config.setBlockWhenExhausted(true);
+		config.setMaxWait(Duration.ofMillis(poolWait));
+		config.setTestOnBorrow(testOnBorrow);
+		config.setTestWhileIdle(true); // The idle connections are pinged in the background
+		config.setTimeBetweenEvictionRuns(Duration.ofSeconds(30));
+		config.setMinEvictableIdleDuration(Duration.ofMinutes(5));
+		config.setJmxEnabled(false);
+		return config;
+	}
+	
+	/**
+	 * Parses a property value (a positive integer)
+	 * @param value - String value of the property
+	 * @param defaultValue - Returned, if the value is not a positive number
+	 * @return - Parsed number, or the default one
+	 */
+	private int parseCount(String value, int defaultValue) {
+		try {
+			int count = Integer.parseInt(value.trim());
+			if (count > 0) {
+				return count;
+			}
+		} catch (NumberFormatException e) {
+			log.ifPresent(log -> log.warning("Not a positive number in the properties: " + value, e));
+		}
+		return defaultValue;
+	}
+	
+	/**
+	 * Logs the failed command (the connection is lost, the pool is exhausted, etc.)
+	 * @param e - Exception, thrown by the command
+	 */
+	private void failed(JedisException e) {
+		if (e instanceof JedisConnectionException) {
+			status = DBSTATUS.FAILED_TO_CONNECT;
+		}
+		log.ifPresent(log -> log.warning("Redis command failed", e));
+	}
+	
 	@Override
-	public WeatherResponse update(WeatherResponse fromResponse) {
+	public WeatherResponse update(String key, WeatherResponse fromResponse) {
 		try {
-			String address = fromResponse.get("address", String.class).get();
-			String response = fromResponse.stringify().get();
-
-			putString("last_location", address); // Last request location
-			putString(address, response); // Last request itself
+			if (hashLayout) {
+				updateHash(key, fromResponse.getForecast());
+				return fromResponse;
+			}
+			byte[] response = fromResponse.serialize().get();
+			
+			// One round trip for both, if they are on the same node (the connection returns to the pool, when the pipeline is closed)
+			UnifiedJedis node = node(key);
+			boolean together = node(LAST_REQUEST) == node;
+			boolean published = publishesWith(node, List.of(key));
+			try (AbstractPipeline pipeline = node.pipelined()) {
+				if (together) {
+					pipeline.setex(LAST_REQUEST, ttl.seconds(LAST_REQUEST, Optional.empty()), key); // Last request key
+				}
+				pipeline.setex(bytes(key), ttl.seconds(key, Optional.of(fromResponse.getForecast())), response); // Last request itself
+				if (published) {
+					pipeline.publish(channel, invalidationOf(List.of(key)));
+				}
+				pipeline.sync();
+			}
+			if (!together) {
+				node(LAST_REQUEST).setex(LAST_REQUEST, ttl.seconds(LAST_REQUEST, Optional.empty()), key);
+			}
+			if (!published) {
+				publish(List.of(key));
+			}
+			status = DBSTATUS.CONNECTED;
+		} catch (JedisException e) {
+			failed(e);
 		} catch (NoSuchElementException e) {
-			log.ifPresent(log -> log.warning("Could not update DB from response: no address value", e));
+			log.ifPresent(log -> log.warning("Could not update DB from response: no response body", e));
 			//lastException = e;
 			status = DBSTATUS.FAILED_TO_UPDATE;
+		} catch (NullPointerException e) {
+			// Not connected
 		}
 		
 		return fromResponse;
@@ -73,17 +398,24 @@ public class RedisWeatherService implements IWeatherService {
 	@Override
 	public Optional<String> getString(String key) {
 		try {
-			return Optional.of(redis.get(key));
+			Optional<String> result = Optional.of(node(key).get(key));
+			ttl.hit(key);
+			return result;
 		} catch (NullPointerException e) {
 			//lastException = e;
 			return Optional.empty();
+		} catch (JedisException e) {
+			failed(e);
+			return Optional.empty();
 		}
 	}
 	
 	@Override
 	public Optional<JSONObject> getObject(String key) {
 		try {
-			return Optional.of(new JSONObject(redis.get(key)));
+			Optional<JSONObject> result = Optional.of(new JSONObject(node(key).get(key)));
+			ttl.hit(key);
+			return result;
 		} catch (NullPointerException e) {
 			//lastException = e;
 			return Optional.empty();
@@ -91,22 +423,305 @@ public class RedisWeatherService implements IWeatherService {
 			log.ifPresent(log -> log.warning("Could not get a JSON object from DB: key non-existent or not a JSON object", e));
 			//lastException = e;
 			return Optional.empty();
+		} catch (JedisException e) {
+			failed(e);
+			return Optional.empty();
+		}
+	}
+	
+	@Override
+	public Optional<byte[]> getBytes(String key) {
+		if (hashLayout) {
+			return Optional.ofNullable(getMany(List.of(key)).get(key)); // Might be a hash
+		}
+		try {
+			Optional<byte[]> result = Optional.ofNullable(node(key).get(bytes(key)));
+			result.ifPresent(value -> ttl.hit(key));
+			return result;
+		} catch (NullPointerException e) {
+			return Optional.empty();
+		} catch (JedisException e) {
+			failed(e);
+			return Optional.empty();
+		}
+	}
+	
+	@Override
+	public Map<String, byte[]> getMany(Collection<String> keys) {
+		Map<String, byte[]> result = new HashMap<>();
+		if (keys.isEmpty()) {
+			return result;
+		}
+		try {
+			List<String> missing = new ArrayList<>();
+			for (Map.Entry<UnifiedJedis, List<String>> group : byNode(keys).entrySet()) {
+				List<String> ordered = group.getValue();
+				List<byte[]> values = read(group.getKey(), ordered);
+				for (int i = 0; i < ordered.size(); i++) {
+					if (values.get(i) != null) {
+						result.put(ordered.get(i), values.get(i));
+						ttl.hit(ordered.get(i));
+					} else {
+						missing.add(ordered.get(i));
+					}
+				}
+			}
+			if (hashLayout && !missing.isEmpty()) {
+				// MGET skips the hashes: the responses are read in one more round trip (and encoded as a whole)
+				readHashes(missing).forEach((key, forecast) -> {
+					result.put(key, ForecastCodec.encode(forecast));
+					ttl.hit(key);
+				});
+			}
+		} catch (NullPointerException e) {
+			// Not connected
+		} catch (JedisException e) {
+			failed(e);
+		}
+		return result;
+	}
+	
+	/**
+	 * Reads the values of the keys of one node in one round trip
+	 * @param node - The node (or the cluster)
+	 * @param keys - The keys of the node
+	 * @return - The values, in the order of the keys (null if absent)
+	 */
+	private List<byte[]> read(UnifiedJedis node, List<String> keys) {
+		if (!(node instanceof JedisCluster)) {
+			return node.mget(keys.stream().map(RedisWeatherService::bytes).toArray(byte[][]::new));
+		}
+		// The keys of a cluster are in different slots (so MGET is not allowed): the pipeline sends them to their nodes
+		List<Response<byte[]>> responses = new ArrayList<>();
+		try (AbstractPipeline pipeline = node.pipelined()) {
+			keys.forEach(key -> responses.add(pipeline.get(bytes(key))));
+			pipeline.sync();
+		}
+		List<byte[]> result = new ArrayList<>();
+		for (Response<byte[]> response : responses) {
+			try {
+				result.add(response.get());
+			} catch (JedisDataException e) {
+				result.add(null); // WRONGTYPE: a hash (read by readHashes), as if absent to MGET
+			}
+		}
+		return result;
+	}
+	
+	@Override
+	public Optional<Forecast> getForecast(String key) {
+		if (hashLayout) {
+			try {
+				Optional<Forecast> result = Optional.ofNullable(readHashes(List.of(key)).get(key));
+				if (result.isPresent()) {
+					ttl.hit(key);
+					return result;
+				}
+			} catch (JedisDataException e) {
+				// Not a hash: cached as a single value
+			} catch (NullPointerException e) {
+				return Optional.empty();
+			} catch (JedisException e) {
+				failed(e);
+				return Optional.empty();
+			}
+		}
+		Optional<byte[]> value = getBytes(key);
+		if (value.isEmpty()) {
+			return Optional.empty();
+		}
+		try {
+			return Optional.of(ForecastCodec.decode(value.get()));
+		} catch (IOException e) {
+			// Possibly cached as JSON text
+			return getObject(key).map(Forecast::of);
+		}
+	}
+	
+	@Override
+	public Optional<Forecast> getDay(String key, int day) {
+		if (!hashLayout) {
+			return getForecast(key)
+					.filter(forecast -> day >= 0 && day < forecast.getDays())
+					.map(forecast -> forecast.slice(day, day + 1).withoutFields());
+		}
+		try {
+			byte[] value = node(key).hget(bytes(key), bytes(DAY + day));
+			if (value == null) {
+				return Optional.empty();
+			}
+			ttl.hit(key);
+			return Optional.of(ForecastCodec.decode(value));
+		} catch (IOException e) {
+			log.ifPresent(log -> log.warning("Could not decode the cached day: " + key + " " + day, e));
+			return Optional.empty();
+		} catch (NullPointerException e) {
+			return Optional.empty();
+		} catch (JedisException e) {
+			failed(e);
+			return Optional.empty();
+		}
+	}
+	
+	@Override
+	public Optional<String> getElement(String key, int day, String element) {
+		if (!hashLayout) {
+			return getDay(key, day).map(forecast -> forecast.getText(0, forecast.column(element)));
+		}
+		try {
+			Optional<String> result = Optional.ofNullable(node(key).hget(key, DAY + day + ":" + element));
+			result.ifPresent(value -> ttl.hit(key));
+			return result;
+		} catch (NullPointerException e) {
+			return Optional.empty();
+		} catch (JedisException e) {
+			failed(e);
+			return Optional.empty();
 		}
 	}
 	
+	/**
+	 * Stores the response as a hash (replaces the previous one atomically, unless in a cluster; the hash expires as a whole)
+	 * @param key - Key of the response
+	 * @param forecast - The response body
+	 */
+	private void updateHash(String key, Forecast forecast) {
+		Map<byte[], byte[]> hash = hashOf(forecast);
+		UnifiedJedis node = node(key);
+		long seconds = ttl.seconds(key, Optional.of(forecast));
+		if (node instanceof JedisCluster) {
+			// No transactions in a cluster: the commands of one key are still sent in order to its node
+			try (AbstractPipeline pipeline = node.pipelined()) {
+				replaceHash(pipeline, bytes(key), hash, seconds);
+				pipeline.sync();
+			}
+		} else {
+			try (AbstractTransaction transaction = node.multi()) {
+				replaceHash(transaction, bytes(key), hash, seconds);
+				if (publishesWith(node, List.of(key))) {
+					transaction.publish(channel, invalidationOf(List.of(key))); // Published together with the change
+				}
+				transaction.exec();
+			}
+		}
+		node(LAST_REQUEST).setex(LAST_REQUEST, ttl.seconds(LAST_REQUEST, Optional.empty()), key);
+		if (!publishesWith(node, List.of(key))) {
+			publish(List.of(key));
+		}
+		status = DBSTATUS.CONNECTED;
+	}
+	
+	/**
+	 * Splits the response into the fields of its hash
+	 * @param forecast - The response body
+	 * @return - The fields with their values
+	 */
+	private static Map<byte[], byte[]> hashOf(Forecast forecast) {
+		Map<byte[], byte[]> hash = new HashMap<>();
+		hash.put(bytes(FIELDS), ForecastCodec.encode(forecast.slice(0, 0))); // The top-level values and the order of the elements
+		for (int day = 0; day < forecast.getDays(); day++) {
+			Forecast record = forecast.slice(day, day + 1).withoutFields();
+			hash.put(bytes(DAY + day), ForecastCodec.encode(record));
+			for (String element : record.getColumns()) {
+				String text = record.getText(0, record.column(element));
+				if (text != null && !record.isNested(record.column(element))) {
+					hash.put(bytes(DAY + day + ":" + element), bytes(text));
+				}
+			}
+		}
+		return hash;
+	}
+	
+	/**
+	 * Splits the encoded response into the fields of its hash
+	 * @param value - Raw bytes
+	 * @return - Optional fields with their values (empty, if the value is not an encoded response: it is stored as a single value then)
+	 */
+	private static Optional<Map<byte[], byte[]>> hashOf(byte[] value) {
+		try {
+			return Optional.of(hashOf(ForecastCodec.decode(value)));
+		} catch (IOException | UncheckedIOException e) {
+			return Optional.empty();
+		}
+	}
+	
+	private static void replaceHash(PipeliningBase commands, byte[] hashKey, Map<byte[], byte[]> hash, long seconds) {
+		commands.del(hashKey); // The days of the previous response are not left behind
+		commands.hset(hashKey, hash);
+		commands.expire(hashKey, seconds);
+	}
+	
+	/**
+	 * Reads the responses, stored as hashes, in one round trip to every node
+	 * @param keys - Keys of the responses
+	 * @return - The responses by their keys (the absent ones and the ones, which could not be decoded, are left out)
+	 */
+	private Map<String, Forecast> readHashes(List<String> keys) {
+		Map<String, Response<Map<byte[], byte[]>>> responses = new HashMap<>();
+		for (Map.Entry<UnifiedJedis, List<String>> group : byNode(keys).entrySet()) {
+			try (AbstractPipeline pipeline = group.getKey().pipelined()) {
+				group.getValue().forEach(key -> responses.put(key, pipeline.hgetAll(bytes(key))));
+				pipeline.sync();
+			}
+		}
+		Map<String, Forecast> result = new HashMap<>();
+		for (Map.Entry<String, Response<Map<byte[], byte[]>>> response : responses.entrySet()) {
+			Map<String, byte[]> hash = new HashMap<>();
+			response.getValue().get().forEach((field, value) -> hash.put(new String(field, StandardCharsets.UTF_8), value));
+			if (!hash.containsKey(FIELDS)) {
+				continue;
+			}
+			try {
+				List<Forecast> parts = new ArrayList<>();
+				parts.add(ForecastCodec.decode(hash.get(FIELDS)));
+				for (int day = 0; hash.containsKey(DAY + day); day++) {
+					parts.add(ForecastCodec.decode(hash.get(DAY + day)));
+				}
+				result.put(response.getKey(), Forecast.join(parts));
+			} catch (IOException e) {
+				log.ifPresent(log -> log.warning("Could not decode the cached response: " + response.getKey(), e));
+			}
+		}
+		return result;
+	}
+	
+	private static byte[] bytes(String value) {
+		return value.getBytes(StandardCharsets.UTF_8);
+	}
+	
 	@Override
 	public void setLogger(WeatherLogger logger) {
 		log = Optional.of(logger);
 	}
 	
+	@Override
+	public void setTtlPolicy(TtlPolicy policy) {
+		ttl = policy;
+	}
+	
+	/**
+	 * Subscribes to the invalidation channel (unless "db-invalidation" is false): the listener is called on the subscriber thread
+	 */
+	@Override
+	public synchronized void setInvalidationListener(InvalidationListener listener) {
+		this.listener = listener;
+		if (!invalidation || seeds.isEmpty() || subscriber != null) {
+			return;
+		}
+		subscriber = new Thread(this::listen, "weather-db-invalidations");
+		subscriber.setDaemon(true);
+		subscriber.start();
+	}
+	
 	@Override
 	public boolean putString(String key, String value) {
 		try {
-			redis.del(key);
-			redis.append(key, value);
-			redis.expire(key, 60 * 60 * 12);
+			node(key).setex(key, ttl.seconds(key, Optional.empty()), value);
 		} catch (NullPointerException e) {
 			return false;
+		} catch (JedisException e) {
+			failed(e);
+			return false;
 		}
 		return true;
 	}
@@ -118,20 +733,159 @@ public class RedisWeatherService implements IWeatherService {
 			if ((result = value.toString()) == null) {
 				return false;
 			}
-			redis.del(key);
-			redis.append(key, result);
-			redis.expire(key, 60 * 60 * 12);
+			node(key).setex(key, ttl.seconds(key, Optional.empty()), result);
 		} catch (NullPointerException e) {
 			//lastException = e;
 			return false;
+		} catch (JedisException e) {
+			failed(e);
+			return false;
+		}
+		return true;
+	}
+	
+	@Override
+	public boolean putBytes(String key, byte[] value) {
+		if (hashLayout) {
+			return putMany(Map.of(key, value)); // Might be stored as a hash
+		}
+		try {
+			UnifiedJedis node = node(key);
+			if (publishesWith(node, List.of(key))) {
+				try (AbstractPipeline pipeline = node.pipelined()) { // One round trip for the value and its invalidation
+					pipeline.setex(bytes(key), ttl.seconds(key, value), value);
+					pipeline.publish(channel, invalidationOf(List.of(key)));
+					pipeline.sync();
+				}
+			} else {
+				node.setex(bytes(key), ttl.seconds(key, value), value);
+				publish(List.of(key));
+			}
+		} catch (NullPointerException e) {
+			return false;
+		} catch (JedisException e) {
+			failed(e);
+			return false;
+		}
+		return true;
+	}
+	
+	@Override
+	public boolean putMany(Map<String, byte[]> values) {
+		if (values.isEmpty()) {
+			return !nodes().isEmpty();
+		}
+		try {
+			// The values of every node are sent in one round trip (the invalidation of the whole batch - with the values of its node)
+			boolean published = false;
+			for (Map.Entry<UnifiedJedis, List<String>> group : byNode(values.keySet()).entrySet()) {
+				try (AbstractPipeline pipeline = group.getKey().pipelined()) {
+					for (String key : group.getValue()) {
+						Optional<Map<byte[], byte[]>> hash = hashLayout ? hashOf(values.get(key)) : Optional.empty();
+						if (hash.isPresent()) {
+							replaceHash(pipeline, bytes(key), hash.get(), ttl.seconds(key, values.get(key)));
+						} else {
+							pipeline.setex(bytes(key), ttl.seconds(key, values.get(key)), values.get(key));
+						}
+					}
+					if (!published && publishesWith(group.getKey(), values.keySet())) {
+						pipeline.publish(channel, invalidationOf(values.keySet()));
+						published = true;
+					}
+					pipeline.sync();
+				}
+			}
+			if (!published) {
+				publish(values.keySet()); // One message for the whole batch
+			}
+		} catch (NullPointerException e) {
+			return false;
+		} catch (JedisException e) {
+			failed(e);
+			return false;
+		}
+		return true;
+	}
+	
+	@Override
+	public boolean remove(Collection<String> keys) {
+		if (keys.isEmpty()) {
+			return !nodes().isEmpty();
+		}
+		try {
+			// The keys of every node are removed in one round trip (a hash is removed as a whole)
+			boolean published = false;
+			for (Map.Entry<UnifiedJedis, List<String>> group : byNode(keys).entrySet()) {
+				try (AbstractPipeline pipeline = group.getKey().pipelined()) {
+					group.getValue().forEach(key -> pipeline.del(bytes(key)));
+					if (!published && publishesWith(group.getKey(), keys)) {
+						pipeline.publish(channel, invalidationOf(keys));
+						published = true;
+					}
+					pipeline.sync();
+				}
+			}
+			if (!published) {
+				publish(keys);
+			}
+		} catch (NullPointerException e) {
+			return false;
+		} catch (JedisException e) {
+			failed(e);
+			return false;
 		}
 		return true;
 	}
 	
 	@Override
 	public void dispose() {
-		if (redis != null) {
-			redis.close();
+		disposed = true;
+		JedisPubSub pubSub = subscription;
+		if (pubSub != null && pubSub.isSubscribed()) {
+			try {
+				pubSub.unsubscribe();
+			} catch (JedisException e) {
+				// The connection is closed below anyway
+			}
+		}
+		synchronized (this) {
+			if (subscriber != null) {
+				subscriber.interrupt();
+			}
+		}
+		nodes().forEach(UnifiedJedis::close);
+	}
+	
+	/**
+	 * Checks the connections to all the nodes (a broken connection is replaced by the pool)
+	 * @return - true if every node has replied
+	 */
+	public boolean ping() {
+		try {
+			if (nodes().isEmpty()) {
+				if (seeds.isEmpty()) {
+					return false;
+				}
+				connect(); // The cluster was not reachable at all at the start
+			}
+			for (UnifiedJedis node : nodes()) {
+				if (node instanceof JedisCluster) {
+					for (ConnectionPool pool : ((JedisCluster) node).getClusterNodes().values()) {
+						try (Connection connection = pool.getResource()) {
+							if (!connection.ping()) {
+								throw new JedisConnectionException("No reply from a cluster node");
+							}
+						}
+					}
+				} else {
+					node.ping();
+				}
+			}
+			status = DBSTATUS.CONNECTED;
+			return true;
+		} catch (JedisException e) {
+			status = DBSTATUS.FAILED_TO_CONNECT;
+			return false;
 		}
 	}
 	
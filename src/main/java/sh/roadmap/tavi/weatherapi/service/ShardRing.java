@@ -0,0 +1,104 @@
+package sh.roadmap.tavi.weatherapi.service;
+
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import redis.clients.jedis.UnifiedJedis;
+
+/**
+ * Consistent hashing of the keys over several Redis nodes (the client-side sharding). <br>
+ * Every node has many points on the ring, so the keys are spread evenly, and adding or removing a node
+ * moves only the keys, which were next to its points. As in Redis Cluster, only the "{tag}" of a key is hashed,
+ * if it has one (to keep the related keys on the same node)
+ */
+final class ShardRing {
+	
+	private static final int POINTS = 160; // Points of every node on the ring
+	
+	private final TreeMap<Long, UnifiedJedis> ring = new TreeMap<>();
+	private final List<UnifiedJedis> nodes;
+	
+	/**
+	 * Places the nodes on the ring
+	 * @param nodes - The nodes by their addresses (the points depend on the addresses, not on the order of the nodes)
+	 */
+	ShardRing(Map<String, UnifiedJedis> nodes) {
+		if (nodes.isEmpty()) {
+			throw new IllegalArgumentException("No nodes to shard the keys over");
+		}
+		this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes.values()));
+		nodes.forEach((address, node) -> {
+			for (int point = 0; point < POINTS; point++) {
+				ring.put(hash(address + "-" + point), node);
+			}
+		});
+	}
+	
+	/**
+	 * Finds the node of the key
+	 * @param key - Some key
+	 * @return - The node, which stores the key
+	 */
+	UnifiedJedis node(String key) {
+		Map.Entry<Long, UnifiedJedis> point = ring.ceilingEntry(hash(hashed(key)));
+		return point == null ? ring.firstEntry().getValue() : point.getValue();
+	}
+	
+	/**
+	 * Splits the keys by their nodes
+	 * @param keys - Some keys
+	 * @return - The keys of every node (only the nodes with some keys), in the order of the keys
+	 */
+	Map<UnifiedJedis, List<String>> split(Collection<String> keys) {
+		Map<UnifiedJedis, List<String>> result = new LinkedHashMap<>();
+		for (String key : keys) {
+			result.computeIfAbsent(node(key), node -> new ArrayList<>()).add(key);
+		}
+		return result;
+	}
+	
+	/**
+	 * @return - All the nodes
+	 */
+	List<UnifiedJedis> nodes() {
+		return nodes;
+	}
+	
+	/**
+	 * 64-bit FNV-1a hash of the UTF-8 bytes, with the final mix of MurmurHash3 (to spread the similar keys over the ring)
+	 */
+	private static long hash(String value) {
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+			hash ^= b & 0xFF;
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+	
+	/**
+	 * @return - The "{tag}" of the key (if it has a non-empty one), or the key itself
+	 */
+	private static String hashed(String key) {
+		int start = key.indexOf('{');
+		if (start >= 0) {
+			int end = key.indexOf('}', start + 1);
+			if (end > start + 1) {
+				return key.substring(start + 1, end);
+			}
+		}
+		return key;
+	}
+}
@@ -0,0 +1,52 @@
+package sh.roadmap.tavi.weatherapi.service;
+
+
+import java.io.IOException;
+import java.util.Optional;
+
+import sh.roadmap.tavi.weatherapi.controller.Forecast;
+import sh.roadmap.tavi.weatherapi.controller.ForecastCodec;
+
+/**
+ * Decides, how long a value lives in the cache (see {@link IWeatherService#setTtlPolicy(TtlPolicy)})
+ */
+public interface TtlPolicy {
+	
+	/**
+	 * The lifetime of a value, which is about to be stored
+	 * @param key - Key of the value
+	 * @param value - The cached forecast (empty, if the value is not a forecast)
+	 * @return - Seconds to keep the value (at least 1)
+	 */
+	public long seconds(String key, Optional<Forecast> value);
+	
+	/**
+	 * The lifetime of a raw value, which is about to be stored (a forecast, if it can be decoded with {@link ForecastCodec})
+	 * @param key - Key of the value
+	 * @param value - Raw bytes of the value
+	 * @return - Seconds to keep the value (at least 1)
+	 */
+	public default long seconds(String key, byte[] value) {
+		try {
+			return seconds(key, Optional.of(ForecastCodec.decode(value))); // Decodes only the layout; the values - on demand
+		} catch (IOException e) {
+			return seconds(key, Optional.empty());
+		}
+	}
+	
+	/**
+	 * Tells the policy, that the value has been read from the cache
+	 * @param key - Key of the value
+	 */
+	public default void hit(String key) {
+	}
+	
+	/**
+	 * The same lifetime for every value
+	 * @param seconds - Seconds to keep every value
+	 * @return - A new TtlPolicy
+	 */
+	public static TtlPolicy fixed(long seconds) {
+		return (key, value) -> seconds;
+	}
+}
@@ -0,0 +1,46 @@
+package sh.roadmap.tavi.weatherapi.tools;
+
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates executors for the blocking work of the WeatherAPI (cache look-ups, response decoding, etc.)
+ */
+public class ExecutorFactory {
+	
+	private ExecutorFactory() {
+	}
+	
+	/**
+	 * Creates an executor, which starts a new virtual thread for each task, so that blocking is cheap
+	 * and hundreds of requests may wait at the same time. <br>
+	 * Virtual threads are available since Java 21; on older JVMs a cached pool of daemon platform threads is used instead.
+	 * @return - A new ExecutorService (must be shut down by its owner)
+	 */
+	public static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool(daemonThreads("weather-api-worker"));
+		}
+	}
+	
+	/**
+	 * A ThreadFactory of daemon threads (they do not stop the application from quitting)
+	 * @param name - Prefix of the threads' names
+	 * @return - A new ThreadFactory
+	 */
+	public static ThreadFactory daemonThreads(String name) {
+		AtomicInteger counter = new AtomicInteger();
+		return runnable -> {
+			Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+}
@@ -4,6 +4,7 @@ package sh.roadmap.tavi.weatherapi.view;
 import java.awt.*;
 import java.awt.event.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 
@@ -47,8 +48,8 @@ public class WeatherApplication implements ActionListener, DocumentListener {
 	// Status of the App (default to "waiting user's submit action")
 	private STATUS status = STATUS.WAITING_SUBMIT;
 	
-	// A thread for fetching the data from the server
-	private Thread connectionThread = null;
+	// The request, which is being fetched from the server
+	private CompletableFuture<Void> pendingRequest = null;
 	
 	/**
 	 * All-in-one graphical representation of the use of the WeatherAPI (basic application)
@@ -158,8 +159,8 @@ public class WeatherApplication implements ActionListener, DocumentListener {
 		frame.setVisible(true);
 		
 		// Show last response from DB on start, if connected
-		if (service != null && service.getString("last_location").isPresent()) {
-			// Retrieve lastly used language (goes tight along with the "last_location")
+		if (service != null && service.getString("last_request").isPresent()) {
+			// Retrieve lastly used language (goes tight along with the "last_request")
 			service.getString("lang").ifPresent(str -> {
 				lang = str;
 				for (int i = 0; i < langSwitch.getItemCount(); i++) {
@@ -172,7 +173,7 @@ public class WeatherApplication implements ActionListener, DocumentListener {
 					api.setLang(str);
 				}
 			});
-			// Retrieve lastly used unit system (goes tight along with the "last_location")
+			// Retrieve lastly used unit system (goes tight along with the "last_request")
 			service.getString("units").ifPresent(str -> {
 				String units = "Metric";
 				switch (str) {
@@ -208,9 +209,10 @@ public class WeatherApplication implements ActionListener, DocumentListener {
 				}
 			});
 						
-			service.getString("last_location").ifPresent(loc -> {
-				location = loc;
-				service.getObject(loc).ifPresent(obj -> update(response.updated(obj)));
+			service.getString("last_request").flatMap(service::getForecast).ifPresent(forecast -> {
+				location = forecast.field("address").map(String::valueOf).orElse(location);
+				WeatherResponse restored = WeatherResponse.restored(forecast, null);
+				update(api == null ? restored : restored.withUnits(api.getUnitSystem()));
 			});
 		} else {
 			update(); // Or basically show app status
@@ -301,7 +303,7 @@ public class WeatherApplication implements ActionListener, DocumentListener {
 	public void actionPerformed(ActionEvent e) {
 		if (e.getActionCommand().equals("comboBoxChanged")) { // Menus interaction
 			if (e.getSource().equals(unitsSwitch)) {
-				// Change unit system (for the next request!)
+				// Change unit system (the shown response is converted locally, without a new request)
 				switch (unitsSwitch.getSelectedItem().toString()) {
 					case "Metric":
 						api.setMetric();
@@ -316,6 +318,9 @@ public class WeatherApplication implements ActionListener, DocumentListener {
 						api.setBaseUnits();
 						break;
 				}
+				if (response.hasBody() && status == STATUS.WAITING_SUBMIT) {
+					update(response.withUnits(api.getUnitSystem()));
+				}
 			}
 			if (e.getSource().equals(langSwitch)) {
 				// Change UI language
@@ -329,11 +334,11 @@ public class WeatherApplication implements ActionListener, DocumentListener {
 		// IF IT'S THE "SUBMIT/UPDATE" BUTTON INTERACTION
 		
 		// Stop user from spamming the button
-		if (connectionThread != null) {
-			if (connectionThread.isAlive()) {
+		if (pendingRequest != null) {
+			if (!pendingRequest.isDone()) {
 				return;
 			}
-			connectionThread = null;
+			pendingRequest = null;
 		}
 		
 		// Change the status and update it on the screen
@@ -341,18 +346,15 @@ public class WeatherApplication implements ActionListener, DocumentListener {
 		update();
 		
 		// For the status label changes to actually take place (on the screen)
-		// we need to wait for the response from the server on a different thread
-		
-		connectionThread = new Thread() {
-			@Override
-			public void run() {
-				// Fetch the data for the set "location", for today and tomorrow
-				update(api.sendRequest(location, "next1days"));
-				status = STATUS.WAITING_SUBMIT;
-			}
-		};
-		
-		connectionThread.start();
+		// we must not wait for the response from the server on the UI thread;
+		// the result is then shown back on the UI thread
+		
+		// Fetch the data for the set "location", for today and tomorrow
+		pendingRequest = api.sendRequestAsync(location, "next1days")
+				.thenAccept(result -> SwingUtilities.invokeLater(() -> {
+					status = STATUS.WAITING_SUBMIT;
+					update(result.withUnits(api.getUnitSystem())); // The units may have been switched meanwhile
+				}));
 	}
 
 	/*
@@ -0,0 +1,91 @@
+package sh.roadmap.tavi.weatherapi.controller;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * The state transitions of the {@link CircuitBreaker}
+ */
+class CircuitBreakerTest {
+	
+	private static final Duration OPEN = Duration.ofMillis(50);
+	
+	private static CircuitBreaker opened() {
+		CircuitBreaker breaker = new CircuitBreaker(2, OPEN);
+		breaker.onFailure();
+		breaker.onFailure();
+		return breaker;
+	}
+	
+	private static void waitOpen() throws InterruptedException {
+		Thread.sleep(OPEN.toMillis() + 20);
+	}
+	
+	@Test
+	void staysClosedBelowThreshold() {
+		CircuitBreaker breaker = new CircuitBreaker(3, OPEN);
+		assertFalse(breaker.onFailure());
+		assertFalse(breaker.onFailure());
+		breaker.onSuccess(); // Not in a row
+		assertFalse(breaker.onFailure());
+		assertFalse(breaker.onFailure());
+		assertEquals(CircuitBreaker.STATE.CLOSED, breaker.getState());
+		assertTrue(breaker.allowRequest());
+	}
+	
+	@Test
+	void opensAfterFailuresInRow() {
+		CircuitBreaker breaker = new CircuitBreaker(2, OPEN);
+		assertFalse(breaker.onFailure());
+		assertTrue(breaker.onFailure());
+		assertEquals(CircuitBreaker.STATE.OPEN, breaker.getState());
+		assertFalse(breaker.allowRequest());
+	}
+	
+	@Test
+	void letsSingleTrialThroughAfterOpenDuration() throws InterruptedException {
+		CircuitBreaker breaker = opened();
+		waitOpen();
+		assertTrue(breaker.allowRequest());
+		assertEquals(CircuitBreaker.STATE.HALF_OPEN, breaker.getState());
+		assertFalse(breaker.allowRequest()); // The trial is in flight
+	}
+	
+	@Test
+	void closesOnTrialSuccess() throws InterruptedException {
+		CircuitBreaker breaker = opened();
+		waitOpen();
+		assertTrue(breaker.allowRequest());
+		breaker.onSuccess();
+		assertEquals(CircuitBreaker.STATE.CLOSED, breaker.getState());
+		assertTrue(breaker.allowRequest());
+		assertTrue(breaker.allowRequest());
+	}
+	
+	@Test
+	void opensAgainOnTrialFailure() throws InterruptedException {
+		CircuitBreaker breaker = opened();
+		waitOpen();
+		assertTrue(breaker.allowRequest());
+		assertTrue(breaker.onFailure());
+		assertEquals(CircuitBreaker.STATE.OPEN, breaker.getState());
+		assertFalse(breaker.allowRequest());
+	}
+	
+	@Test
+	void abortedTrialLetsAnotherOneThrough() throws InterruptedException {
+		CircuitBreaker breaker = opened();
+		waitOpen();
+		assertTrue(breaker.allowRequest());
+		breaker.onAbort();
+		assertEquals(CircuitBreaker.STATE.HALF_OPEN, breaker.getState());
+		assertTrue(breaker.allowRequest());
+		assertFalse(breaker.allowRequest());
+	}
+}
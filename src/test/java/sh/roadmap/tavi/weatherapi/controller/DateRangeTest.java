@@ -0,0 +1,87 @@
+package sh.roadmap.tavi.weatherapi.controller;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Optional;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Resolving the date expressions of the requests to the {@link DateRange}
+ */
+class DateRangeTest {
+	
+	private static final LocalDate TODAY = LocalDate.of(2024, 2, 28);
+	
+	private static Optional<DateRange> range(String start, String end) {
+		return Optional.of(new DateRange(LocalDate.parse(start), LocalDate.parse(end)));
+	}
+	
+	@Test
+	void resolvesRelativeDays() {
+		assertEquals(range("2024-02-28", "2024-02-28"), DateRange.resolve("today", TODAY));
+		assertEquals(range("2024-02-29", "2024-02-29"), DateRange.resolve("tomorrow", TODAY));
+		assertEquals(range("2024-02-27", "2024-02-27"), DateRange.resolve("yesterday", TODAY));
+	}
+	
+	@Test
+	void resolvesNextDays() {
+		assertEquals(range("2024-02-28", "2024-03-06"), DateRange.resolve("next7days", TODAY));
+		assertEquals(range("2024-02-28", "2024-02-28"), DateRange.resolve("next0days", TODAY));
+		assertEquals(8, DateRange.resolve("next7days", TODAY).get().length());
+	}
+	
+	@Test
+	void ignoresCaseAndSpaces() {
+		assertEquals(DateRange.resolve("next7days", TODAY), DateRange.resolve(" Next7Days ", TODAY));
+		assertEquals(DateRange.resolve("today", TODAY), DateRange.resolve("TODAY", TODAY));
+	}
+	
+	@Test
+	void resolvesExplicitDates() {
+		assertEquals(range("2024-05-01", "2024-05-01"), DateRange.resolve("2024-05-01", TODAY));
+		assertEquals(range("2024-05-01", "2024-05-03"), DateRange.resolve("2024-05-01/2024-05-03", TODAY));
+	}
+	
+	@Test
+	void leavesUnsupportedExpressionsUnresolved() {
+		assertTrue(DateRange.resolve("last30days", TODAY).isEmpty());
+		assertTrue(DateRange.resolve("next1000days", TODAY).isEmpty()); // Too many digits
+		assertTrue(DateRange.resolve("next400days", TODAY).isEmpty()); // Longer than MAX_DAYS
+		assertTrue(DateRange.resolve("2024-05-03/2024-05-01", TODAY).isEmpty()); // Ends before it starts
+		assertTrue(DateRange.resolve("2024-13-01", TODAY).isEmpty());
+		assertTrue(DateRange.resolve("", TODAY).isEmpty());
+		assertTrue(DateRange.resolve(null, TODAY).isEmpty());
+	}
+	
+	@Test
+	void parsesOnlyExplicitRanges() {
+		assertTrue(DateRange.parse("today").isEmpty());
+		assertTrue(DateRange.parse("2024-05-01/2024-05-02/2024-05-03").isEmpty());
+		assertEquals(range("2024-05-01", "2024-05-02"), DateRange.parse("2024-05-01/2024-05-02"));
+	}
+	
+	@Test
+	void printsExplicitExpression() {
+		assertEquals("2024-05-01", range("2024-05-01", "2024-05-01").get().toString());
+		assertEquals("2024-05-01/2024-05-03", range("2024-05-01", "2024-05-03").get().toString());
+		DateRange range = DateRange.resolve("next2days", TODAY).get();
+		assertEquals(Optional.of(range), DateRange.parse(range.toString()));
+	}
+	
+	@Test
+	void listsDaysInOrder() {
+		assertEquals(List.of(LocalDate.parse("2024-02-28"), LocalDate.parse("2024-02-29"), LocalDate.parse("2024-03-01")),
+				DateRange.resolve("next2days", TODAY).get().days());
+	}
+	
+	@Test
+	void rejectsReversedRange() {
+		assertThrows(IllegalArgumentException.class, () -> new DateRange(TODAY, TODAY.minusDays(1)));
+	}
+}
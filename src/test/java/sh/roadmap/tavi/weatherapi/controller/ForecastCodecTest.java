@@ -0,0 +1,152 @@
+package sh.roadmap.tavi.weatherapi.controller;
+
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Round trips of the {@link ForecastCodec} binary format: every value must be restored with exactly the same text and number
+ */
+class ForecastCodecTest {
+	
+	/**
+	 * A response with every kind of the columns and the top-level values
+	 */
+	private static Forecast sample() {
+		JSONObject body = new JSONObject()
+				.put("queryCost", 1) // Integer
+				.put("big", 12345678901234L) // Long
+				.put("latitude", new BigDecimal("51.5064")) // Decimal
+				.put("ratio", 0.1d) // Double
+				.put("huge", new BigDecimal("1E+40")) // Decimal, which is not fixed-point (stored as text)
+				.put("resolvedAddress", "London, England")
+				.put("flag", true)
+				.put("off", false)
+				.put("stations", new JSONObject().put("a", new JSONArray().put(1).put(2))); // Nested
+		String[] mixed = {"8.0", "8.25", "-3", "0.5"};
+		JSONArray days = new JSONArray();
+		for (int day = 0; day < 4; day++) {
+			days.put(new JSONObject()
+					.put("datetime", "2024-05-0" + (day + 1))
+					.put("temp", new BigDecimal(new String[] {"14.2", "9.85", "-0.3", "20"}[day])) // Fixed-point deltas
+					.put("mixed", new BigDecimal(mixed[day])) // Mixed scales
+					.put("precip", day % 2 == 0 ? JSONObject.NULL : new BigDecimal("0.012")) // Missing values (NaN)
+					.put("sci", new BigDecimal("1.0E-7")) // Not restorable from fixed-point (stored as text)
+					.put("conditions", day == 2 ? JSONObject.NULL : "Rain, Partially cloudy") // Text
+					.put("preciptype", day == 1 ? JSONObject.NULL : new JSONArray().put("rain")) // Nested, with a missing value
+					.put("hours", new JSONArray().put(new JSONObject().put("datetime", "00:00:00").put("temp", 10.5)))); // Nested
+		}
+		return Forecast.of(body.put("days", days));
+	}
+	
+	private static void assertSameForecast(Forecast expected, Forecast actual) {
+		assertEquals(expected.getDays(), actual.getDays());
+		assertEquals(expected.getColumns(), actual.getColumns());
+		assertEquals(expected.getFields(), actual.getFields());
+		for (String key : expected.getFields()) {
+			assertEquals(expected.rawField(key), actual.rawField(key), key);
+			assertEquals(expected.isNestedField(key), actual.isNestedField(key), key);
+		}
+		for (int column = 0; column < expected.getColumns().size(); column++) {
+			String name = expected.getColumns().get(column);
+			assertEquals(expected.isNumeric(column), actual.isNumeric(column), name);
+			assertEquals(expected.isNested(column), actual.isNested(column), name);
+			for (int day = 0; day < expected.getDays(); day++) {
+				assertEquals(expected.getText(day, column), actual.getText(day, column), name + " " + day);
+				assertEquals(0, Double.compare(expected.getNumber(day, column), actual.getNumber(day, column)), name + " " + day);
+			}
+		}
+		assertTrue(expected.toJson().similar(actual.toJson()));
+	}
+	
+	@Test
+	void restoresEveryKindOfValue() throws IOException {
+		Forecast forecast = sample();
+		assertSameForecast(forecast, ForecastCodec.decode(ForecastCodec.encode(forecast)));
+	}
+	
+	@Test
+	void restoresMissingNumbersAsNaN() throws IOException {
+		Forecast decoded = ForecastCodec.decode(ForecastCodec.encode(sample()));
+		int precip = decoded.column("precip");
+		assertTrue(decoded.isNumeric(precip));
+		assertTrue(Double.isNaN(decoded.getNumber(0, precip)));
+		assertNull(decoded.getText(0, precip));
+		assertEquals("0.012", decoded.getText(1, precip));
+		assertEquals(0.012, decoded.getNumber(1, precip));
+	}
+	
+	@Test
+	void restoresMixedScales() throws IOException {
+		Forecast decoded = ForecastCodec.decode(ForecastCodec.encode(sample()));
+		int mixed = decoded.column("mixed");
+		assertEquals(Arrays.asList("8.0", "8.25", "-3", "0.5"),
+				Arrays.asList(decoded.getText(0, mixed), decoded.getText(1, mixed), decoded.getText(2, mixed), decoded.getText(3, mixed)));
+		assertEquals(8.25, decoded.getNumber(1, mixed));
+	}
+	
+	@Test
+	void restoresEmptyForecast() throws IOException {
+		assertSameForecast(Forecast.EMPTY, ForecastCodec.decode(ForecastCodec.encode(Forecast.EMPTY)));
+	}
+	
+	@Test
+	void encodesDecodedForecastToSameBytes() throws IOException {
+		byte[] encoded = ForecastCodec.encode(sample());
+		assertArrayEquals(encoded, ForecastCodec.encode(ForecastCodec.decode(encoded)));
+	}
+	
+	@Test
+	void rejectsOtherVersion() {
+		byte[] encoded = ForecastCodec.encode(sample());
+		encoded[2] = (byte) (ForecastCodec.VERSION + 1);
+		IOException e = assertThrows(IOException.class, () -> ForecastCodec.decode(encoded));
+		assertTrue(e.getMessage().contains("version"), e.getMessage());
+	}
+	
+	@Test
+	void rejectsOtherFormat() {
+		assertThrows(IOException.class, () -> ForecastCodec.decode("{\"days\":[]}".getBytes()));
+		assertThrows(IOException.class, () -> ForecastCodec.decode(new byte[0]));
+	}
+	
+	@Test
+	void rejectsTruncatedData() {
+		byte[] encoded = ForecastCodec.encode(sample());
+		for (int length = 0; length < encoded.length; length++) {
+			byte[] truncated = Arrays.copyOf(encoded, length);
+			assertThrows(IOException.class, () -> ForecastCodec.decode(truncated), "length " + length);
+		}
+	}
+	
+	@Test
+	void failsOnCorruptedDataOnlyWithIOExceptions() {
+		byte[] encoded = ForecastCodec.encode(sample());
+		Random random = new Random(1);
+		for (int i = 0; i < 5000; i++) {
+			byte[] corrupted = encoded.clone();
+			int flips = 1 + random.nextInt(3);
+			for (int flip = 0; flip < flips; flip++) {
+				corrupted[random.nextInt(corrupted.length)] ^= (byte) (1 << random.nextInt(8));
+			}
+			try {
+				ForecastCodec.decode(corrupted).decodeAll().toJson();
+			} catch (IOException | UncheckedIOException e) {
+				// The expected failures: at once, or while the values are decoded
+			}
+		}
+	}
+}
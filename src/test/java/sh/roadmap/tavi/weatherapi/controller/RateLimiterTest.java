@@ -0,0 +1,62 @@
+package sh.roadmap.tavi.weatherapi.controller;
+
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * The token bucket of the {@link RateLimiter}
+ */
+class RateLimiterTest {
+	
+	private static final Duration DEADLINE = Duration.ofSeconds(5);
+	
+	@Test
+	void admitsBurstAtOnce() {
+		RateLimiter limiter = new RateLimiter(1, 3);
+		for (int i = 0; i < 3; i++) {
+			assertTrue(limiter.acquire(DEADLINE, Runnable::run).isDone());
+		}
+	}
+	
+	@Test
+	void queuesOverBurst() throws Exception {
+		RateLimiter limiter = new RateLimiter(20, 1); // A token every 50 ms
+		assertTrue(limiter.acquire(DEADLINE, Runnable::run).isDone());
+		long start = System.nanoTime();
+		CompletableFuture<Void> queued = limiter.acquire(DEADLINE, Runnable::run);
+		assertFalse(queued.isDone());
+		queued.get(1, TimeUnit.SECONDS);
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(40));
+	}
+	
+	@Test
+	void rejectsWaitLongerThanDeadline() {
+		RateLimiter limiter = new RateLimiter(1, 1); // A token every second
+		assertTrue(limiter.acquire(DEADLINE, Runnable::run).isDone());
+		CompletableFuture<Void> rejected = limiter.acquire(Duration.ofMillis(100), Runnable::run);
+		ExecutionException e = assertThrows(ExecutionException.class, rejected::get);
+		assertTrue(e.getCause() instanceof TimeoutException);
+	}
+	
+	@Test
+	void sharesBucketOfApiKey() {
+		assertSame(RateLimiter.forKey("test-key", 1, 1), RateLimiter.forKey("test-key", 5, 5));
+	}
+	
+	@Test
+	void rejectsInvalidLimits() {
+		assertThrows(IllegalArgumentException.class, () -> new RateLimiter(0, 1));
+		assertThrows(IllegalArgumentException.class, () -> new RateLimiter(1, 0));
+	}
+}
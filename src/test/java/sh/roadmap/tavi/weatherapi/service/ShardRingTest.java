@@ -0,0 +1,121 @@
+package sh.roadmap.tavi.weatherapi.service;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import redis.clients.jedis.JedisPooled;
+import redis.clients.jedis.UnifiedJedis;
+
+/**
+ * The consistent hashing of the {@link ShardRing} (the nodes are never connected to)
+ */
+class ShardRingTest {
+	
+	private static final int KEYS = 30000;
+	
+	private final Map<String, UnifiedJedis> nodes = new LinkedHashMap<>();
+	
+	private Map<String, UnifiedJedis> nodes(int count) {
+		Map<String, UnifiedJedis> result = new LinkedHashMap<>();
+		for (int i = 0; i < count; i++) {
+			String address = "10.0.0." + (i + 1) + ":6379";
+			result.put(address, nodes.computeIfAbsent(address, key -> new JedisPooled("localhost", 6379))); // Connects on the first command
+		}
+		return result;
+	}
+	
+	private static List<String> keys() {
+		List<String> result = new ArrayList<>();
+		for (int i = 0; i < KEYS; i++) {
+			result.add("weather:city" + i + ":next7days:en:days:datetime,temp");
+		}
+		return result;
+	}
+	
+	@AfterEach
+	void close() {
+		nodes.values().forEach(UnifiedJedis::close);
+	}
+	
+	@Test
+	void spreadsKeysEvenly() {
+		ShardRing ring = new ShardRing(nodes(4));
+		Map<UnifiedJedis, Integer> counts = new HashMap<>();
+		keys().forEach(key -> counts.merge(ring.node(key), 1, Integer::sum));
+		assertEquals(4, counts.size());
+		for (int count : counts.values()) {
+			assertTrue(Math.abs(count - KEYS / 4) < KEYS / 4 * 0.2, "Keys of a node: " + count); // Within 20% of the fair share
+		}
+	}
+	
+	@Test
+	void movesOnlyKeysOfAddedNode() {
+		ShardRing before = new ShardRing(nodes(3));
+		ShardRing after = new ShardRing(nodes(4));
+		UnifiedJedis added = nodes.get("10.0.0.4:6379");
+		int moved = 0;
+		for (String key : keys()) {
+			UnifiedJedis node = after.node(key);
+			if (node != before.node(key)) {
+				assertSame(added, node, key); // Never moved between the old nodes
+				moved++;
+			}
+		}
+		assertTrue(Math.abs(moved - KEYS / 4) < KEYS / 4 * 0.2, "Moved keys: " + moved);
+	}
+	
+	@Test
+	void dependsOnAddressesNotOrder() {
+		Map<String, UnifiedJedis> ordered = nodes(3);
+		List<String> addresses = new ArrayList<>(ordered.keySet());
+		Collections.reverse(addresses);
+		Map<String, UnifiedJedis> reversed = new LinkedHashMap<>();
+		addresses.forEach(address -> reversed.put(address, ordered.get(address)));
+		ShardRing first = new ShardRing(ordered);
+		ShardRing second = new ShardRing(reversed);
+		keys().forEach(key -> assertSame(first.node(key), second.node(key), key));
+	}
+	
+	@Test
+	void keepsTaggedKeysTogether() {
+		ShardRing ring = new ShardRing(nodes(4));
+		UnifiedJedis node = ring.node("{london}:forecast");
+		for (int i = 0; i < 100; i++) {
+			assertSame(node, ring.node("{london}:day:" + i));
+		}
+	}
+	
+	@Test
+	void splitsKeysByNodesInOrder() {
+		ShardRing ring = new ShardRing(nodes(3));
+		List<String> keys = keys().subList(0, 100);
+		Map<UnifiedJedis, List<String>> split = ring.split(keys);
+		int total = 0;
+		for (Map.Entry<UnifiedJedis, List<String>> group : split.entrySet()) {
+			group.getValue().forEach(key -> assertSame(group.getKey(), ring.node(key)));
+			List<String> ordered = new ArrayList<>(keys);
+			ordered.retainAll(group.getValue());
+			assertEquals(ordered, group.getValue());
+			total += group.getValue().size();
+		}
+		assertEquals(keys.size(), total);
+	}
+	
+	@Test
+	void rejectsNoNodes() {
+		assertThrows(IllegalArgumentException.class, () -> new ShardRing(Map.of()));
+	}
+}